@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import lucene.security.accumulo.ArrayByteSequence;
+import lucene.security.accumulo.ByteSequence;
+
+/**
+ * Assigns every distinct authorization a dense int id so authorization sets
+ * can be held as bitmasks. Authorizations are keyed in their escaped form,
+ * which is how terms appear inside visibility expressions.
+ * 
+ * NOTE: The dictionary is shared by the whole process and ids are never
+ * reclaimed, so it grows with every distinct authorization seen, including the
+ * labels of document visibilities. A mask is sized by the largest id it holds,
+ * so sets of labels seen late get longer masks even when they hold few labels.
+ * Use a bounded set of labels.
+ */
+public class AuthorizationDictionary {
+
+  private static final AuthorizationDictionary INSTANCE = new AuthorizationDictionary();
+
+  private final ConcurrentMap<ByteSequence, Integer> _ids = new ConcurrentHashMap<ByteSequence, Integer>();
+  private int _nextId;
+
+  public static AuthorizationDictionary getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Gets the id of the escaped authorization, assigning the next free id if it
+   * has not been seen before.
+   */
+  public int getId(ByteSequence authorization) {
+    Integer id = _ids.get(authorization);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = _ids.get(authorization);
+      if (id == null) {
+        id = _nextId++;
+        _ids.put(new ArrayByteSequence(authorization.toArray()), id);
+      }
+      return id;
+    }
+  }
+
+  public int size() {
+    return _ids.size();
+  }
+
+  public static void set(long[] mask, int id) {
+    mask[id >>> 6] |= 1L << id;
+  }
+
+  public static boolean get(long[] mask, int id) {
+    int word = id >>> 6;
+    return word < mask.length && (mask[word] & (1L << id)) != 0;
+  }
+
+  public static long[] newMask(int maxId) {
+    return new long[(maxId >>> 6) + 1];
+  }
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lucene.security.accumulo.ColumnVisibility;
+import lucene.security.accumulo.ColumnVisibility.Node;
+import lucene.security.accumulo.VisibilityParseException;
+
+/**
+ * A visibility expression flattened into arrays once, so evaluating it does
+ * not walk the parse tree or allocate. Nodes are laid out breadth first so the
+ * children of every AND and OR node are contiguous.
+ */
+public class CompiledDocumentVisibility {
+
+  private static final int TERM = 0;
+  private static final int AND = 1;
+  private static final int OR = 2;
+
+  private final boolean _empty;
+  private final int[] _types;
+  private final int[] _firstChild;
+  private final int[] _childCount;
+  private final int[] _termIds;
+  // Per AND and OR node, the ids of its direct term children as a mask.
+  private final long[][] _termMasks;
+  private final boolean[] _onlyTerms;
+
+  private CompiledDocumentVisibility(boolean empty, int[] types, int[] firstChild, int[] childCount, int[] termIds,
+      long[][] termMasks, boolean[] onlyTerms) {
+    _empty = empty;
+    _types = types;
+    _firstChild = firstChild;
+    _childCount = childCount;
+    _termIds = termIds;
+    _termMasks = termMasks;
+    _onlyTerms = onlyTerms;
+  }
+
+  public static CompiledDocumentVisibility compile(ColumnVisibility visibility) throws VisibilityParseException {
+    byte[] expression = visibility.getExpression();
+    if (expression.length == 0) {
+      return new CompiledDocumentVisibility(true, null, null, null, null, null, null);
+    }
+    List<Node> nodes = new ArrayList<Node>();
+    nodes.add(visibility.getParseTree());
+    // The list grows while it is walked, which gives the breadth first order.
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      if (node.getType() != ColumnVisibility.NodeType.TERM) {
+        List<Node> children = node.getChildren();
+        if (children == null || children.size() < 2) {
+          throw new VisibilityParseException(node.getType() + " has less than 2 children", expression,
+              node.getTermStart());
+        }
+        nodes.addAll(children);
+      }
+    }
+    int size = nodes.size();
+    int[] types = new int[size];
+    int[] firstChild = new int[size];
+    int[] childCount = new int[size];
+    int[] termIds = new int[size];
+    AuthorizationDictionary dictionary = AuthorizationDictionary.getInstance();
+    int next = 1;
+    for (int i = 0; i < size; i++) {
+      Node node = nodes.get(i);
+      switch (node.getType()) {
+      case TERM:
+        types[i] = TERM;
+        termIds[i] = dictionary.getId(node.getTerm(expression));
+        break;
+      case AND:
+      case OR:
+        types[i] = node.getType() == ColumnVisibility.NodeType.AND ? AND : OR;
+        firstChild[i] = next;
+        childCount[i] = node.getChildren().size();
+        next += childCount[i];
+        break;
+      default:
+        throw new VisibilityParseException("No such node type", expression, node.getTermStart());
+      }
+    }
+    long[][] termMasks = new long[size][];
+    boolean[] onlyTerms = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      if (types[i] == TERM) {
+        continue;
+      }
+      int first = firstChild[i];
+      int end = first + childCount[i];
+      int maxId = -1;
+      onlyTerms[i] = true;
+      for (int c = first; c < end; c++) {
+        if (types[c] == TERM) {
+          maxId = Math.max(maxId, termIds[c]);
+        } else {
+          onlyTerms[i] = false;
+        }
+      }
+      if (maxId >= 0) {
+        long[] mask = AuthorizationDictionary.newMask(maxId);
+        for (int c = first; c < end; c++) {
+          if (types[c] == TERM) {
+            AuthorizationDictionary.set(mask, termIds[c]);
+          }
+        }
+        termMasks[i] = mask;
+      }
+    }
+    return new CompiledDocumentVisibility(false, types, firstChild, childCount, termIds, termMasks, onlyTerms);
+  }
+
+  /**
+   * @param authMask
+   *          the authorizations as a mask of {@link AuthorizationDictionary}
+   *          ids.
+   * @see DocumentAuthorizations#getAuthorizationMask()
+   */
+  public boolean evaluate(long[] authMask) {
+    if (_empty) {
+      return true;
+    }
+    return evaluate(0, authMask);
+  }
+
+  private boolean evaluate(int node, long[] authMask) {
+    switch (_types[node]) {
+    case TERM:
+      return AuthorizationDictionary.get(authMask, _termIds[node]);
+    case AND:
+      if (_termMasks[node] != null && !containsAll(authMask, _termMasks[node])) {
+        return false;
+      }
+      if (!_onlyTerms[node]) {
+        int first = _firstChild[node];
+        int end = first + _childCount[node];
+        for (int i = first; i < end; i++) {
+          if (_types[i] != TERM && !evaluate(i, authMask)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    default:
+      if (_termMasks[node] != null && containsAny(authMask, _termMasks[node])) {
+        return true;
+      }
+      if (!_onlyTerms[node]) {
+        int first = _firstChild[node];
+        int end = first + _childCount[node];
+        for (int i = first; i < end; i++) {
+          if (_types[i] != TERM && evaluate(i, authMask)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  private static boolean containsAll(long[] authMask, long[] mask) {
+    for (int i = 0; i < mask.length; i++) {
+      long auth = i < authMask.length ? authMask[i] : 0L;
+      if ((auth & mask[i]) != mask[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean containsAny(long[] authMask, long[] mask) {
+    int length = Math.min(authMask.length, mask.length);
+    for (int i = 0; i < length; i++) {
+      if ((authMask[i] & mask[i]) != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
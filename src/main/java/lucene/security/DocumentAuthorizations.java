@@ -17,13 +17,18 @@
 package lucene.security;
 
 import java.util.Collection;
+import java.util.List;
 
+import lucene.security.accumulo.ArrayByteSequence;
 import lucene.security.accumulo.Authorizations;
+import lucene.security.accumulo.VisibilityEvaluator;
 
 public class DocumentAuthorizations extends Authorizations {
 
   private static final long serialVersionUID = 2919269465244708278L;
 
+  private transient volatile long[] _mask;
+
   public DocumentAuthorizations() {
     super();
   }
@@ -36,4 +41,28 @@ public class DocumentAuthorizations extends Authorizations {
     super(authorizations.toArray(new String[authorizations.size()]));
   }
 
+  /**
+   * Gets these authorizations as a bitmask of {@link AuthorizationDictionary}
+   * ids, computed on first use.
+   */
+  public long[] getAuthorizationMask() {
+    long[] mask = _mask;
+    if (mask == null) {
+      AuthorizationDictionary dictionary = AuthorizationDictionary.getInstance();
+      List<byte[]> authorizations = getAuthorizations();
+      int[] ids = new int[authorizations.size()];
+      int maxId = 0;
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = dictionary.getId(new ArrayByteSequence(VisibilityEvaluator.escape(authorizations.get(i), false)));
+        maxId = Math.max(maxId, ids[i]);
+      }
+      mask = AuthorizationDictionary.newMask(maxId);
+      for (int id : ids) {
+        AuthorizationDictionary.set(mask, id);
+      }
+      _mask = mask;
+    }
+    return mask;
+  }
+
 }
@@ -17,9 +17,12 @@
 package lucene.security;
 
 import lucene.security.accumulo.ColumnVisibility;
+import lucene.security.accumulo.VisibilityParseException;
 
 public class DocumentVisibility extends ColumnVisibility {
 
+  private volatile CompiledDocumentVisibility _compiled;
+
   public DocumentVisibility() {
     super();
   }
@@ -32,4 +35,15 @@ public class DocumentVisibility extends ColumnVisibility {
     super(expression);
   }
 
+  /**
+   * Gets the expression compiled for evaluation, compiled on first use.
+   */
+  public CompiledDocumentVisibility getCompiled() throws VisibilityParseException {
+    CompiledDocumentVisibility compiled = _compiled;
+    if (compiled == null) {
+      _compiled = compiled = CompiledDocumentVisibility.compile(this);
+    }
+    return compiled;
+  }
+
 }
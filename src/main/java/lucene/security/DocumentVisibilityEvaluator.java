@@ -18,20 +18,19 @@ package lucene.security;
 
 import java.io.IOException;
 
-import lucene.security.accumulo.VisibilityEvaluator;
 import lucene.security.accumulo.VisibilityParseException;
 
 public class DocumentVisibilityEvaluator {
 
-  private VisibilityEvaluator _evaluator;
+  private final long[] _authorizationMask;
 
   public DocumentVisibilityEvaluator(DocumentAuthorizations authorizations) {
-    _evaluator = new VisibilityEvaluator(authorizations);
+    _authorizationMask = authorizations.getAuthorizationMask();
   }
 
   public boolean evaluate(DocumentVisibility visibility) throws IOException {
     try {
-      return _evaluator.evaluate(visibility);
+      return visibility.getCompiled().evaluate(_authorizationMask);
     } catch (VisibilityParseException e) {
       throw new IOException(e);
     }
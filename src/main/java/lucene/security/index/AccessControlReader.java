@@ -17,16 +17,24 @@
 package lucene.security.index;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
 
 public abstract class AccessControlReader implements Cloneable {
 
+  public static final int BLOCK_SIZE = 128;
+
   public final boolean hasAccess(ReadType type, int docID) throws IOException {
     switch (type) {
     case DOCS_ENUM:
     case LIVEDOCS:
+    case QUERY:
       return readOrDiscoverAccess(docID);
     case DOCUMENT_FETCH_DISCOVER:
       return discoverAccess(docID);
@@ -42,6 +50,107 @@ public abstract class AccessControlReader implements Cloneable {
     }
   }
 
+  /**
+   * Sets the bit of every doc in [startDoc, endDoc) that
+   * {@link #hasAccess(ReadType, int)} would allow, bits that are not allowed
+   * are left untouched. Implementations should override this when they can
+   * check a range of docs cheaper than one at a time.
+   */
+  public void hasAccess(ReadType type, int startDoc, int endDoc, FixedBitSet result) throws IOException {
+    for (int doc = startDoc; doc < endDoc; doc++) {
+      if (hasAccess(type, doc)) {
+        result.set(doc);
+      }
+    }
+  }
+
+  /**
+   * Sets the bit of every doc in docIDs[offset, offset + length) that
+   * {@link #hasAccess(ReadType, int)} would allow, so callers holding a block
+   * of hits pay for the dispatch once.
+   */
+  public void hasAccess(ReadType type, int[] docIDs, int offset, int length, FixedBitSet result) throws IOException {
+    boolean[] access = new boolean[length];
+    hasAccess(type, docIDs, offset, length, access);
+    for (int i = 0; i < length; i++) {
+      if (access[i]) {
+        result.set(docIDs[offset + i]);
+      }
+    }
+  }
+
+  /**
+   * Sets result[i] for every docIDs[offset + i] that
+   * {@link #hasAccess(ReadType, int)} would allow, entries that are not allowed
+   * are left untouched. Needs no storage sized by maxDoc, so it suits small
+   * batches such as the top hits of a query. Implementations should override
+   * this when they can check many docs cheaper than one at a time.
+   */
+  public void hasAccess(ReadType type, int[] docIDs, int offset, int length, boolean[] result) throws IOException {
+    for (int i = 0; i < length; i++) {
+      if (hasAccess(type, docIDs[offset + i])) {
+        result[i] = true;
+      }
+    }
+  }
+
+  /**
+   * Sets the bit of every doc of the iterator that
+   * {@link #hasAccess(ReadType, int)} would allow, the docs are checked in
+   * blocks of {@link #BLOCK_SIZE}.
+   */
+  public void hasAccess(ReadType type, DocIdSetIterator iterator, FixedBitSet result) throws IOException {
+    int[] docIDs = new int[BLOCK_SIZE];
+    boolean[] access = new boolean[BLOCK_SIZE];
+    int length = 0;
+    int doc;
+    while ((doc = iterator.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+      docIDs[length++] = doc;
+      if (length == BLOCK_SIZE) {
+        setAccess(type, docIDs, length, access, result);
+        length = 0;
+      }
+    }
+    if (length > 0) {
+      setAccess(type, docIDs, length, access, result);
+    }
+  }
+
+  private void setAccess(ReadType type, int[] docIDs, int length, boolean[] access, FixedBitSet result)
+      throws IOException {
+    Arrays.fill(access, 0, length, false);
+    hasAccess(type, docIDs, 0, length, access);
+    for (int i = 0; i < length; i++) {
+      if (access[i]) {
+        result.set(docIDs[i]);
+      }
+    }
+  }
+
+  /**
+   * Whether {@link #hasAccess(ReadType, int)} consults the read visibility for
+   * the given type.
+   */
+  protected static boolean checksRead(ReadType type) {
+    return type != ReadType.DOCUMENT_FETCH_DISCOVER;
+  }
+
+  /**
+   * Whether {@link #hasAccess(ReadType, int)} consults the discover visibility
+   * for the given type.
+   */
+  protected static boolean checksDiscover(ReadType type) {
+    switch (type) {
+    case DOCS_ENUM:
+    case LIVEDOCS:
+    case QUERY:
+    case DOCUMENT_FETCH_DISCOVER:
+      return true;
+    default:
+      return false;
+    }
+  }
+
   protected abstract boolean readAccess(int docID) throws IOException;
 
   protected abstract boolean discoverAccess(int docID) throws IOException;
@@ -54,4 +163,11 @@ public abstract class AccessControlReader implements Cloneable {
 
   public abstract Filter getQueryFilter() throws IOException;
 
+  /**
+   * Gets the docs a query may match in the segment of this clone, so a query
+   * filter can reuse the access already computed by
+   * {@link #clone(AtomicReader)}.
+   */
+  public abstract DocIdSet getQueryDocIdSet(Bits acceptDocs) throws IOException;
+
 }
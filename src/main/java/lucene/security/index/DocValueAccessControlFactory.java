@@ -34,12 +34,10 @@ import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.search.DocIdSet;
-import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
-
-import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import org.apache.lucene.util.FixedBitSet;
 
 public class DocValueAccessControlFactory extends AccessControlFactory {
 
@@ -69,14 +67,16 @@ public class DocValueAccessControlFactory extends AccessControlFactory {
 
   public static class DocValueAccessControlReader extends AccessControlReader {
 
+    static final byte UNKNOWN = 0;
+    static final byte ALLOW = 1;
+    static final byte DENY = 2;
+
     private final DocumentAuthorizations _readUnionDiscoverAuthorizations;
     private final DocumentAuthorizations _readAuthorizations;
     private final String _readField;
     private final String _discoverField;
     private final DocumentVisibilityEvaluator _readUnionDiscoverVisibilityEvaluator;
     private final DocumentVisibilityEvaluator _readAuthorizationsVisibilityEvaluator;
-    private final ConcurrentLinkedHashMap<Integer, DocumentVisibility> _readOrdToDocumentVisibility;
-    private final ConcurrentLinkedHashMap<Integer, DocumentVisibility> _discoverOrdToDocumentVisibility;
     private final Set<String> _discoverableFields;
     private final ThreadLocal<BytesRef> _ref = new ThreadLocal<BytesRef>() {
       @Override
@@ -87,6 +87,10 @@ public class DocValueAccessControlFactory extends AccessControlFactory {
 
     private SortedDocValues _readFieldSortedDocValues;
     private SortedDocValues _discoverFieldSortedDocValues;
+    // Evaluated state per ord of the current segment, filled in lazily.
+    private byte[] _readOrdState;
+    private byte[] _discoverOrdState;
+    private int _maxDoc;
 
     public DocValueAccessControlReader(Collection<String> readAuthorizations,
         Collection<String> discoverAuthorizations, Set<String> discoverableFields) {
@@ -101,10 +105,6 @@ public class DocValueAccessControlFactory extends AccessControlFactory {
       _readAuthorizationsVisibilityEvaluator = new DocumentVisibilityEvaluator(_readAuthorizations);
       _readField = READ_FIELD;
       _discoverField = DISCOVER_FIELD;
-      _readOrdToDocumentVisibility = new ConcurrentLinkedHashMap.Builder<Integer, DocumentVisibility>()
-          .maximumWeightedCapacity(1000).build();
-      _discoverOrdToDocumentVisibility = new ConcurrentLinkedHashMap.Builder<Integer, DocumentVisibility>()
-          .maximumWeightedCapacity(1000).build();
     }
 
     @Override
@@ -113,6 +113,9 @@ public class DocValueAccessControlFactory extends AccessControlFactory {
         DocValueAccessControlReader clone = (DocValueAccessControlReader) super.clone();
         clone._discoverFieldSortedDocValues = in.getSortedDocValues(_discoverField);
         clone._readFieldSortedDocValues = in.getSortedDocValues(_readField);
+        clone._discoverOrdState = newOrdState(clone._discoverFieldSortedDocValues);
+        clone._readOrdState = newOrdState(clone._readFieldSortedDocValues);
+        clone._maxDoc = in.maxDoc();
         return clone;
       } catch (CloneNotSupportedException e) {
         throw new IOException(e);
@@ -130,42 +133,137 @@ public class DocValueAccessControlFactory extends AccessControlFactory {
     }
 
     private boolean discoverAccess(BytesRef ref, int doc) throws IOException {
-      SortedDocValues discoverFieldSortedDocValues = _discoverFieldSortedDocValues;
-      // Checking discovery access
-      int ord = discoverFieldSortedDocValues.getOrd(doc);
-      if (ord >= 0) {
-        // If < 0 means there is no value.
-        DocumentVisibility discoverDocumentVisibility = _discoverOrdToDocumentVisibility.get(ord);
-        if (discoverDocumentVisibility == null) {
-          discoverFieldSortedDocValues.get(doc, ref);
-          discoverDocumentVisibility = new DocumentVisibility(ref.utf8ToString());
-          _discoverOrdToDocumentVisibility.put(ord, discoverDocumentVisibility);
+      return hasAccess(_discoverFieldSortedDocValues, _discoverOrdState, _readUnionDiscoverVisibilityEvaluator, ref,
+          doc);
+    }
+
+    private boolean readAccess(BytesRef ref, int doc) throws IOException {
+      return hasAccess(_readFieldSortedDocValues, _readOrdState, _readAuthorizationsVisibilityEvaluator, ref, doc);
+    }
+
+    @Override
+    public void hasAccess(ReadType type, int startDoc, int endDoc, FixedBitSet result) throws IOException {
+      BytesRef ref = new BytesRef();
+      int[] ords = new int[BLOCK_SIZE];
+      for (int start = startDoc; start < endDoc; start += BLOCK_SIZE) {
+        int length = Math.min(endDoc - start, BLOCK_SIZE);
+        if (checksRead(type)) {
+          fillAccess(_readFieldSortedDocValues, _readOrdState, _readAuthorizationsVisibilityEvaluator, ref, ords, start,
+              length, result);
         }
-        if (_readUnionDiscoverVisibilityEvaluator.evaluate(discoverDocumentVisibility)) {
-          return true;
+        if (checksDiscover(type)) {
+          fillAccess(_discoverFieldSortedDocValues, _discoverOrdState, _readUnionDiscoverVisibilityEvaluator, ref, ords,
+              start, length, result);
         }
       }
-      return false;
     }
 
-    private boolean readAccess(BytesRef ref, int doc) throws IOException {
-      SortedDocValues readFieldSortedDocValues = _readFieldSortedDocValues;
-      // Checking read access
-      int ord = readFieldSortedDocValues.getOrd(doc);
-      if (ord >= 0) {
-        // If < 0 means there is no value.
-        DocumentVisibility readDocumentVisibility = _readOrdToDocumentVisibility.get(ord);
-        if (readDocumentVisibility == null) {
-          readFieldSortedDocValues.get(doc, ref);
-          readDocumentVisibility = new DocumentVisibility(ref.utf8ToString());
-          _readOrdToDocumentVisibility.put(ord, readDocumentVisibility);
+    @Override
+    public void hasAccess(ReadType type, int[] docIDs, int offset, int length, boolean[] result) throws IOException {
+      BytesRef ref = new BytesRef();
+      int[] ords = new int[Math.min(length, BLOCK_SIZE)];
+      for (int start = 0; start < length; start += BLOCK_SIZE) {
+        int blockLength = Math.min(length - start, BLOCK_SIZE);
+        if (checksRead(type)) {
+          fillAccess(_readFieldSortedDocValues, _readOrdState, _readAuthorizationsVisibilityEvaluator, ref, ords,
+              docIDs, offset, start, blockLength, result);
         }
+        if (checksDiscover(type)) {
+          fillAccess(_discoverFieldSortedDocValues, _discoverOrdState, _readUnionDiscoverVisibilityEvaluator, ref, ords,
+              docIDs, offset, start, blockLength, result);
+        }
+      }
+    }
 
-        if (_readAuthorizationsVisibilityEvaluator.evaluate(readDocumentVisibility)) {
-          return true;
+    /**
+     * Checks the length docs starting at doc start.
+     */
+    private static void fillAccess(SortedDocValues values, byte[] ordState, DocumentVisibilityEvaluator evaluator,
+        BytesRef ref, int[] ords, int start, int length, FixedBitSet result) throws IOException {
+      if (values == null) {
+        return;
+      }
+      // Read the ords of the whole block first, then resolve them in a second
+      // pass that is only array reads once the ord states are known.
+      for (int i = 0; i < length; i++) {
+        ords[i] = values.getOrd(start + i);
+      }
+      for (int i = 0; i < length; i++) {
+        if (isAllowed(values, ordState, evaluator, ref, ords[i])) {
+          result.set(start + i);
+        }
+      }
+    }
+
+    /**
+     * Checks the length docs starting at docIDs[offset + start], the results
+     * are indexed from offset.
+     */
+    private static void fillAccess(SortedDocValues values, byte[] ordState, DocumentVisibilityEvaluator evaluator,
+        BytesRef ref, int[] ords, int[] docIDs, int offset, int start, int length, boolean[] result)
+        throws IOException {
+      if (values == null) {
+        return;
+      }
+      for (int i = 0; i < length; i++) {
+        ords[i] = values.getOrd(docIDs[offset + start + i]);
+      }
+      for (int i = 0; i < length; i++) {
+        if (isAllowed(values, ordState, evaluator, ref, ords[i])) {
+          result[start + i] = true;
         }
       }
-      return false;
+    }
+
+    byte getReadOrdState(int ord) {
+      return _readOrdState[ord];
+    }
+
+    byte getDiscoverOrdState(int ord) {
+      return _discoverOrdState[ord];
+    }
+
+    private static byte[] newOrdState(SortedDocValues values) {
+      if (values == null) {
+        return null;
+      }
+      return new byte[values.getValueCount()];
+    }
+
+    private static boolean hasAccess(SortedDocValues values, byte[] ordState, DocumentVisibilityEvaluator evaluator,
+        BytesRef ref, int doc) throws IOException {
+      if (values == null) {
+        return false;
+      }
+      return isAllowed(values, ordState, evaluator, ref, values.getOrd(doc));
+    }
+
+    private static boolean isAllowed(SortedDocValues values, byte[] ordState, DocumentVisibilityEvaluator evaluator,
+        BytesRef ref, int ord) throws IOException {
+      if (ord < 0) {
+        // If < 0 means there is no value.
+        return false;
+      }
+      byte state = ordState[ord];
+      if (state == UNKNOWN) {
+        state = evaluate(values, ordState, evaluator, ref, ord);
+      }
+      return state == ALLOW;
+    }
+
+    private static byte evaluate(SortedDocValues values, byte[] ordState, DocumentVisibilityEvaluator evaluator,
+        BytesRef ref, int ord) throws IOException {
+      // Concurrent callers may evaluate the same ord, they always agree.
+      values.lookupOrd(ord, ref);
+      DocumentVisibility visibility = new DocumentVisibility(ref.utf8ToString());
+      byte state = !isEmpty(visibility) && evaluator.evaluate(visibility) ? ALLOW : DENY;
+      ordState[ord] = state;
+      return state;
+    }
+
+    private static boolean isEmpty(DocumentVisibility visibility) {
+      // Documents without a value read back as the empty value.
+      return visibility.getExpression().length == 0;
     }
 
     @Override
@@ -178,51 +276,32 @@ public class DocValueAccessControlFactory extends AccessControlFactory {
       return new Filter() {
         @Override
         public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
-          AtomicReader reader = context.reader();
-          final int maxDoc = reader.maxDoc();
-          final AccessControlReader accessControlReader = DocValueAccessControlReader.this.clone(reader);
-          return new DocIdSet() {
-            @Override
-            public DocIdSetIterator iterator() throws IOException {
-              return new DocIdSetIterator() {
-
-                private int _docId = -1;
-
-                @Override
-                public int advance(int target) throws IOException {
-                  if (_docId == NO_MORE_DOCS) {
-                    return _docId;
-                  }
-                  for (; target < maxDoc; target++) {
-                    if (accessControlReader.hasAccess(ReadType.QUERY, target)) {
-                      return _docId = target;
-                    }
-                  }
-                  return _docId = NO_MORE_DOCS;
-                }
-
-                @Override
-                public int nextDoc() throws IOException {
-                  return advance(_docId + 1);
-                }
-
-                @Override
-                public int docID() {
-                  return _docId;
-                }
-
-                @Override
-                public long cost() {
-                  return maxDoc;
-                }
-
-              };
-            }
-          };
+          return DocValueAccessControlReader.this.clone(context.reader()).getQueryDocIdSet(acceptDocs);
         }
       };
     }
 
+    @Override
+    public DocIdSet getQueryDocIdSet(Bits acceptDocs) throws IOException {
+      if (_readFieldSortedDocValues == null && _discoverFieldSortedDocValues == null) {
+        return DocIdSet.EMPTY_DOCIDSET;
+      }
+      // The visibilities are evaluated once per distinct value, so the block
+      // loop is only ord lookups.
+      FixedBitSet result = new FixedBitSet(_maxDoc);
+      hasAccess(ReadType.QUERY, 0, _maxDoc, result);
+      if (acceptDocs instanceof FixedBitSet) {
+        result.and((FixedBitSet) acceptDocs);
+      } else if (acceptDocs != null) {
+        for (int doc = 0; doc < _maxDoc; doc++) {
+          if (!acceptDocs.get(doc)) {
+            result.clear(doc);
+          }
+        }
+      }
+      return result;
+    }
+
     @Override
     protected boolean readAccess(int docID) throws IOException {
       return readAccess(_ref.get(), docID);
@@ -25,6 +25,7 @@ import lucene.security.document.DocumentVisiblityField;
 import lucene.security.search.BitSetDocumentVisibilityFilterCacheStrategy;
 import lucene.security.search.DocumentVisibilityFilter;
 import lucene.security.search.DocumentVisibilityFilterCacheStrategy;
+import lucene.security.search.LongBufferBitSet;
 
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.AtomicReader;
@@ -34,6 +35,8 @@ import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.OpenBitSet;
 
 public class FilterAccessControlFactory extends AccessControlFactory {
 
@@ -137,6 +140,61 @@ public class FilterAccessControlFactory extends AccessControlFactory {
       }
     }
 
+    @Override
+    public void hasAccess(ReadType type, int startDoc, int endDoc, FixedBitSet result) throws IOException {
+      checkClone();
+      if (checksRead(type) && !_noReadAccess) {
+        or(_readDocIdSet, startDoc, endDoc, result);
+      }
+      if (checksDiscover(type) && !_noDiscoverAccess) {
+        or(_discoverDocIdSet, startDoc, endDoc, result);
+      }
+    }
+
+    /**
+     * ORs the docs of the set in [startDoc, endDoc) into the result, word by
+     * word for the bitsets the cache strategies produce.
+     */
+    private static void or(DocIdSet docIdSet, int startDoc, int endDoc, FixedBitSet result) throws IOException {
+      if (startDoc >= endDoc) {
+        return;
+      }
+      if (docIdSet instanceof OpenBitSet) {
+        OpenBitSet bitSet = (OpenBitSet) docIdSet;
+        or(bitSet.getBits(), bitSet.getNumWords(), startDoc, endDoc, result);
+      } else if (docIdSet instanceof FixedBitSet) {
+        FixedBitSet bitSet = (FixedBitSet) docIdSet;
+        or(bitSet.getBits(), FixedBitSet.bits2words(bitSet.length()), startDoc, endDoc, result);
+      } else if (docIdSet instanceof LongBufferBitSet) {
+        ((LongBufferBitSet) docIdSet).or(result, startDoc, endDoc);
+      } else {
+        DocIdSetIterator iterator = docIdSet.iterator();
+        if (iterator == null) {
+          return;
+        }
+        for (int doc = iterator.advance(startDoc); doc < endDoc; doc = iterator.nextDoc()) {
+          result.set(doc);
+        }
+      }
+    }
+
+    private static void or(long[] words, int numWords, int startDoc, int endDoc, FixedBitSet result) {
+      long[] bits = result.getBits();
+      int startWord = startDoc >> 6;
+      int endWord = (endDoc - 1) >> 6;
+      int lastWord = Math.min(endWord, numWords - 1);
+      for (int i = startWord; i <= lastWord; i++) {
+        long word = words[i];
+        if (i == startWord) {
+          word &= -1L << startDoc;
+        }
+        if (i == endWord) {
+          word &= -1L >>> -endDoc;
+        }
+        bits[i] |= word;
+      }
+    }
+
     @Override
     public boolean canDiscoverField(String name) {
       return _discoverableFields.contains(name);
@@ -187,37 +245,39 @@ public class FilterAccessControlFactory extends AccessControlFactory {
       return new Filter() {
         @Override
         public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
-          FilterAccessControlReader accessControlReader = (FilterAccessControlReader) FilterAccessControlReader.this
-              .clone(context.reader());
-          DocIdSet secureDocIdSet = getSecureDocIdSet(accessControlReader);
-          if (acceptDocs == null) {
-            return secureDocIdSet;
-          } else {
-            return applyDeletes(acceptDocs, secureDocIdSet);
-          }
+          return FilterAccessControlReader.this.clone(context.reader()).getQueryDocIdSet(acceptDocs);
         }
+      };
+    }
 
-        private DocIdSet getSecureDocIdSet(FilterAccessControlReader accessControlReader) throws IOException {
-          DocIdSet readDocIdSet = accessControlReader._readDocIdSet;
-          DocIdSet discoverDocIdSet = accessControlReader._discoverDocIdSet;
-          if (isEmptyOrNull(discoverDocIdSet) && isEmptyOrNull(readDocIdSet)) {
-            return DocIdSet.EMPTY_DOCIDSET;
-          } else if (isEmptyOrNull(discoverDocIdSet)) {
-            return readDocIdSet;
-          } else if (isEmptyOrNull(readDocIdSet)) {
-            return discoverDocIdSet;
-          } else {
-            return DocumentVisibilityFilter.getLogicalOr(readDocIdSet, discoverDocIdSet);
-          }
-        }
+    @Override
+    public DocIdSet getQueryDocIdSet(Bits acceptDocs) throws IOException {
+      checkClone();
+      DocIdSet secureDocIdSet = getSecureDocIdSet();
+      if (acceptDocs == null) {
+        return secureDocIdSet;
+      } else {
+        return applyDeletes(acceptDocs, secureDocIdSet);
+      }
+    }
 
-        private boolean isEmptyOrNull(DocIdSet docIdSet) {
-          if (docIdSet == null || docIdSet == DocIdSet.EMPTY_DOCIDSET) {
-            return true;
-          }
-          return false;
-        }
-      };
+    private DocIdSet getSecureDocIdSet() throws IOException {
+      if (isEmptyOrNull(_discoverDocIdSet) && isEmptyOrNull(_readDocIdSet)) {
+        return DocIdSet.EMPTY_DOCIDSET;
+      } else if (isEmptyOrNull(_discoverDocIdSet)) {
+        return _readDocIdSet;
+      } else if (isEmptyOrNull(_readDocIdSet)) {
+        return _discoverDocIdSet;
+      } else {
+        return DocumentVisibilityFilter.getLogicalOr(_readDocIdSet, _discoverDocIdSet);
+      }
+    }
+
+    private boolean isEmptyOrNull(DocIdSet docIdSet) {
+      if (docIdSet == null || docIdSet == DocIdSet.EMPTY_DOCIDSET) {
+        return true;
+      }
+      return false;
     }
 
     protected DocIdSet applyDeletes(final Bits acceptDocs, final DocIdSet secureDocIdSet) {
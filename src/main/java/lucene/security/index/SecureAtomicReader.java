@@ -17,7 +17,13 @@
 package lucene.security.index;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.lucene.index.AtomicReader;
@@ -31,12 +37,20 @@ import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermState;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.AttributeSource;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.automaton.CompiledAutomaton;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
+
 /**
  * The current {@link SecureAtomicReader} will protect access to documents based
  * on the {@link AccessControl} object.
@@ -45,13 +59,28 @@ import org.apache.lucene.util.automaton.CompiledAutomaton;
  * {@link TermsEnum} to create a type ahead. Make sure that you check that the
  * {@link TermsEnum} actually points to a single document because the
  * {@link SecureAtomicReader} will leak terms that users don't have access to
- * read or discover.
+ * read or discover, unless it was created with hideInvisibleTerms set. In that
+ * mode terms without a visible document are skipped and term statistics only
+ * count visible documents. Ords are not supported in that mode because they
+ * would count the hidden terms, {@link TermsEnum#ord()} returns -1 like the
+ * {@link Terms} statistics do and {@link TermsEnum#seekExact(long)} throws
+ * {@link UnsupportedOperationException}.
  */
 public class SecureAtomicReader extends FilterAtomicReader {
 
+  private static final long MAX_CACHED_TERM_BYTES = 4 * 1024 * 1024;
+  private static final int TERM_OVERHEAD_BYTES = 64;
+
   private final AccessControlReader _accessControl;
   private final AtomicReader _original;
 
+  // Materialized on first use, DOCS_ENUM and LIVEDOCS share the same access.
+  private volatile FixedBitSet _accessDocs;
+  private volatile FixedBitSet _secureLiveDocs;
+
+  private final boolean _hideInvisibleTerms;
+  private final ConcurrentLinkedHashMap<Term, TermStats> _termVisibility;
+
   public static SecureAtomicReader create(AccessControlFactory accessControlFactory, AtomicReader in,
       Collection<String> readAuthorizations, Collection<String> discoverAuthorizations, Set<String> discoverableFields)
       throws IOException {
@@ -61,9 +90,89 @@ public class SecureAtomicReader extends FilterAtomicReader {
   }
 
   public SecureAtomicReader(AtomicReader in, AccessControlReader accessControlReader) throws IOException {
+    this(in, accessControlReader, false);
+  }
+
+  public SecureAtomicReader(AtomicReader in, AccessControlReader accessControlReader, boolean hideInvisibleTerms)
+      throws IOException {
     super(in);
     _accessControl = accessControlReader.clone(in);
     _original = in;
+    _hideInvisibleTerms = hideInvisibleTerms;
+    _termVisibility = hideInvisibleTerms ? newTermVisibilityCache() : null;
+  }
+
+  /**
+   * Wraps a newer reader of the same segment core as previous, such as after a
+   * reopen that only changed deletes. The access control clone and the access
+   * bits do not depend on deletes so they are reused, the cached visibility
+   * bitsets they read live until the segment core closes so previous may be
+   * closed first.
+   */
+  SecureAtomicReader(AtomicReader in, SecureAtomicReader previous) {
+    super(in);
+    _accessControl = previous._accessControl;
+    _original = in;
+    _hideInvisibleTerms = previous._hideInvisibleTerms;
+    _termVisibility = _hideInvisibleTerms ? newTermVisibilityCache() : null;
+    _accessDocs = previous._accessDocs;
+  }
+
+  /**
+   * Visibility and visible statistics of the terms seen by the enums of this
+   * reader, bounded by the bytes of the copied terms.
+   */
+  private static ConcurrentLinkedHashMap<Term, TermStats> newTermVisibilityCache() {
+    return new ConcurrentLinkedHashMap.Builder<Term, TermStats>().maximumWeightedCapacity(MAX_CACHED_TERM_BYTES)
+        .weigher(new EntryWeigher<Term, TermStats>() {
+          @Override
+          public int weightOf(Term term, TermStats stats) {
+            return term.bytes().length + TERM_OVERHEAD_BYTES;
+          }
+        }).build();
+  }
+
+  public boolean isHideInvisibleTerms() {
+    return _hideInvisibleTerms;
+  }
+
+  /**
+   * The cached visible docFreq of the term or -1 when it has not been counted.
+   */
+  int getCachedDocFreq(Term term) {
+    TermStats stats = _termVisibility == null ? null : _termVisibility.get(term);
+    return stats == null ? -1 : stats._docFreq;
+  }
+
+  /**
+   * Whether a term has a visible document and, once counted, its visible
+   * statistics. The counts are -1 until they are asked for.
+   */
+  static class TermStats {
+
+    static final TermStats VISIBLE = new TermStats(true, -1, -1);
+    static final TermStats INVISIBLE = new TermStats(false, -1, -1);
+
+    final boolean _visible;
+    final int _docFreq;
+    final long _totalTermFreq;
+
+    TermStats(boolean visible, int docFreq, long totalTermFreq) {
+      _visible = visible;
+      _docFreq = docFreq;
+      _totalTermFreq = totalTermFreq;
+    }
+
+    boolean isCounted() {
+      return _docFreq >= 0;
+    }
+  }
+
+  /**
+   * Gets the access control clone for the segment of this reader.
+   */
+  public AccessControlReader getAccessControlReader() {
+    return _accessControl;
   }
 
   public AtomicReader getOriginalReader() {
@@ -72,37 +181,172 @@ public class SecureAtomicReader extends FilterAtomicReader {
 
   @Override
   public Bits getLiveDocs() {
-    final Bits liveDocs = in.getLiveDocs();
-    final int maxDoc = maxDoc();
-    return new Bits() {
+    return getVisibleDocs();
+  }
 
-      @Override
-      public boolean get(int index) {
-        if (liveDocs == null || liveDocs.get(index)) {
-          // Need to check access
+  /**
+   * Gets the live docs the user may read or discover, the same instance as
+   * {@link #getLiveDocs()}. It is built once per reader, so query filters can
+   * use it instead of checking access again.
+   */
+  public FixedBitSet getVisibleDocs() {
+    FixedBitSet secureLiveDocs = _secureLiveDocs;
+    if (secureLiveDocs == null) {
+      synchronized (this) {
+        secureLiveDocs = _secureLiveDocs;
+        if (secureLiveDocs == null) {
+          _secureLiveDocs = secureLiveDocs = createSecureLiveDocs();
+        }
+      }
+    }
+    return secureLiveDocs;
+  }
+
+  private FixedBitSet getAccessDocs() {
+    FixedBitSet accessDocs = _accessDocs;
+    if (accessDocs == null) {
+      synchronized (this) {
+        accessDocs = _accessDocs;
+        if (accessDocs == null) {
+          int maxDoc = maxDoc();
+          accessDocs = new FixedBitSet(maxDoc);
           try {
-            if (_accessControl.hasAccess(ReadType.LIVEDOCS, index)) {
-              return true;
-            }
+            _accessControl.hasAccess(ReadType.LIVEDOCS, 0, maxDoc, accessDocs);
           } catch (IOException e) {
             throw new RuntimeException(e);
           }
+          _accessDocs = accessDocs;
         }
-        return false;
       }
+    }
+    return accessDocs;
+  }
 
-      @Override
-      public int length() {
-        return maxDoc;
+  private FixedBitSet createSecureLiveDocs() {
+    FixedBitSet accessDocs = getAccessDocs();
+    Bits liveDocs = in.getLiveDocs();
+    if (liveDocs == null) {
+      return accessDocs;
+    }
+    FixedBitSet secureLiveDocs = accessDocs.clone();
+    int maxDoc = maxDoc();
+    for (int doc = 0; doc < maxDoc; doc++) {
+      if (!liveDocs.get(doc)) {
+        secureLiveDocs.clear(doc);
       }
+    }
+    return secureLiveDocs;
+  }
 
-    };
+  /**
+   * Upper bound of the bytes held by the access bits of this reader once they
+   * are materialized, the second bitset is only built when the segment has
+   * deletes.
+   */
+  long sizeInBytes() {
+    long bitSetBytes = FixedBitSet.bits2words(maxDoc()) * 8L;
+    return in.hasDeletions() ? 2 * bitSetBytes : bitSetBytes;
+  }
+
+  /**
+   * Gets the access bits to intersect postings with, folding in the given live
+   * docs when they are the live docs of this reader.
+   */
+  private FixedBitSet getPostingsAccess(Bits liveDocs) {
+    if (liveDocs != null && (liveDocs == getLiveDocs() || liveDocs == in.getLiveDocs())) {
+      return getVisibleDocs();
+    }
+    return getAccessDocs();
+  }
+
+  /**
+   * The live docs to hand to the wrapped postings, null when they are already
+   * part of {@link #getPostingsAccess(Bits)}.
+   */
+  private Bits getPostingsLiveDocs(Bits liveDocs) {
+    if (liveDocs == null || liveDocs == getLiveDocs() || liveDocs == in.getLiveDocs()) {
+      return null;
+    }
+    return liveDocs;
   }
 
   @Override
   public Fields getTermVectors(int docID) throws IOException {
-    // use doc auth
-    throw new RuntimeException("Not implemented.");
+    if (_accessControl.hasAccess(ReadType.DOCUMENT_FETCH_READ, docID)) {
+      return in.getTermVectors(docID);
+    }
+    if (_accessControl.hasAccess(ReadType.DOCUMENT_FETCH_DISCOVER, docID)) {
+      return discoverableTermVectors(in.getTermVectors(docID));
+    }
+    return null;
+  }
+
+  /**
+   * Gets the term vectors of many docs, such as the top hits to highlight.
+   * Access is checked for the whole batch at once and the vectors are read in
+   * doc order.
+   * 
+   * @return the vectors in the order of docIDs, null where there are none or
+   *         the doc is not visible.
+   */
+  public Fields[] getTermVectors(int[] docIDs) throws IOException {
+    int length = docIDs.length;
+    boolean[] read = new boolean[length];
+    boolean[] discover = new boolean[length];
+    _accessControl.hasAccess(ReadType.DOCUMENT_FETCH_READ, docIDs, 0, length, read);
+    _accessControl.hasAccess(ReadType.DOCUMENT_FETCH_DISCOVER, docIDs, 0, length, discover);
+    // Each entry packs the doc above its position so sorting orders by doc.
+    long[] order = new long[length];
+    for (int i = 0; i < length; i++) {
+      order[i] = ((long) docIDs[i] << 32) | i;
+    }
+    Arrays.sort(order);
+    Fields[] result = new Fields[length];
+    for (long entry : order) {
+      int i = (int) entry;
+      if (read[i]) {
+        result[i] = in.getTermVectors(docIDs[i]);
+      } else if (discover[i]) {
+        result[i] = discoverableTermVectors(in.getTermVectors(docIDs[i]));
+      }
+    }
+    return result;
+  }
+
+  private Fields discoverableTermVectors(Fields fields) throws IOException {
+    if (fields == null) {
+      return null;
+    }
+    List<String> discoverable = new ArrayList<String>();
+    for (String field : fields) {
+      if (_accessControl.canDiscoverField(field)) {
+        discoverable.add(field);
+      }
+    }
+    if (discoverable.isEmpty()) {
+      return null;
+    }
+    final List<String> discoverableFields = Collections.unmodifiableList(discoverable);
+    return new FilterFields(fields) {
+
+      @Override
+      public Iterator<String> iterator() {
+        return discoverableFields.iterator();
+      }
+
+      @Override
+      public Terms terms(String field) throws IOException {
+        if (!discoverableFields.contains(field)) {
+          return null;
+        }
+        return in.terms(field);
+      }
+
+      @Override
+      public int size() {
+        return discoverableFields.size();
+      }
+    };
   }
 
   @Override
@@ -160,7 +404,7 @@ public class SecureAtomicReader extends FilterAtomicReader {
 
   @Override
   public Fields fields() throws IOException {
-    return new SecureFields(in.fields(), _accessControl, maxDoc());
+    return new SecureFields(in.fields(), this);
   }
 
   @Override
@@ -300,13 +544,11 @@ public class SecureAtomicReader extends FilterAtomicReader {
 
   static class SecureFields extends FilterFields {
 
-    private final int _maxDoc;
-    private final AccessControlReader _accessControlReader;
+    private final SecureAtomicReader _reader;
 
-    public SecureFields(Fields in, AccessControlReader accessControlReader, int maxDoc) {
+    public SecureFields(Fields in, SecureAtomicReader reader) {
       super(in);
-      _accessControlReader = accessControlReader;
-      _maxDoc = maxDoc;
+      _reader = reader;
     }
 
     @Override
@@ -315,55 +557,390 @@ public class SecureAtomicReader extends FilterAtomicReader {
       if (terms == null) {
         return null;
       }
-      return new SecureTerms(terms, _accessControlReader, _maxDoc);
+      return new SecureTerms(field, terms, _reader);
     }
 
   }
 
   static class SecureTerms extends FilterTerms {
 
-    private final int _maxDoc;
-    private final AccessControlReader _accessControlReader;
+    private final String _field;
+    private final SecureAtomicReader _reader;
 
-    public SecureTerms(Terms in, AccessControlReader accessControlReader, int maxDoc) {
+    public SecureTerms(String field, Terms in, SecureAtomicReader reader) {
       super(in);
-      _accessControlReader = accessControlReader;
-      _maxDoc = maxDoc;
+      _field = field;
+      _reader = reader;
     }
 
     @Override
     public TermsEnum iterator(TermsEnum reuse) throws IOException {
-      return new SecureTermsEnum(in.iterator(reuse), _accessControlReader, _maxDoc);
+      if (reuse instanceof SecureTermsEnum) {
+        SecureTermsEnum secureTermsEnum = (SecureTermsEnum) reuse;
+        secureTermsEnum.reset(_field, in.iterator(secureTermsEnum._in), _reader);
+        return secureTermsEnum;
+      }
+      return new SecureTermsEnum(_field, in.iterator(reuse), _reader);
     }
 
     @Override
     public TermsEnum intersect(CompiledAutomaton compiled, BytesRef startTerm) throws IOException {
-      return new SecureTermsEnum(in.intersect(compiled, startTerm), _accessControlReader, _maxDoc);
+      return new SecureTermsEnum(_field, in.intersect(compiled, startTerm), _reader);
+    }
+
+    // The unfiltered collection statistics would leak invisible documents.
+
+    @Override
+    public long size() throws IOException {
+      return _reader._hideInvisibleTerms ? -1 : in.size();
+    }
+
+    @Override
+    public long getSumTotalTermFreq() throws IOException {
+      return _reader._hideInvisibleTerms ? -1 : in.getSumTotalTermFreq();
+    }
+
+    @Override
+    public long getSumDocFreq() throws IOException {
+      return _reader._hideInvisibleTerms ? -1 : in.getSumDocFreq();
+    }
+
+    @Override
+    public int getDocCount() throws IOException {
+      return _reader._hideInvisibleTerms ? -1 : in.getDocCount();
     }
   }
 
-  static class SecureTermsEnum extends FilterTermsEnum {
+  /**
+   * Not a {@link FilterTermsEnum} because the delegate and reader are swapped
+   * when the enum is reused.
+   */
+  static class SecureTermsEnum extends TermsEnum {
+
+    private String _field;
+    private TermsEnum _in;
+    private SecureAtomicReader _reader;
+    private boolean _hideInvisibleTerms;
+    private DocsEnum _statsDocsEnum;
+    // Cached entry of the current term, null until looked up.
+    private TermStats _stats;
+
+    public SecureTermsEnum(String field, TermsEnum in, SecureAtomicReader reader) {
+      reset(field, in, reader);
+    }
 
-    private final int _maxDoc;
-    private final AccessControlReader _accessControlReader;
+    void reset(String field, TermsEnum in, SecureAtomicReader reader) {
+      _field = field;
+      _in = in;
+      _reader = reader;
+      _hideInvisibleTerms = reader._hideInvisibleTerms;
+      _stats = null;
+    }
 
-    public SecureTermsEnum(TermsEnum in, AccessControlReader accessControlReader, int maxDoc) {
-      super(in);
-      _accessControlReader = accessControlReader;
-      _maxDoc = maxDoc;
+    /**
+     * Checks if the current term has a visible document, stopping at the first
+     * one. The answer is cached per term for the life of the reader.
+     */
+    private boolean isVisible() throws IOException {
+      BytesRef term = _in.term();
+      _stats = _reader._termVisibility.get(new Term(_field, term));
+      if (_stats != null) {
+        return _stats._visible;
+      }
+      FixedBitSet access = _reader.getVisibleDocs();
+      DocsEnum docsEnum = _statsDocsEnum = _in.docs(null, _statsDocsEnum, DocsEnum.FLAG_NONE);
+      boolean visible = leapfrog(docsEnum, access, docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS;
+      _stats = visible ? TermStats.VISIBLE : TermStats.INVISIBLE;
+      _reader._termVisibility.put(new Term(_field, BytesRef.deepCopyOf(term)), _stats);
+      return visible;
+    }
+
+    /**
+     * Counts the visible documents of the current term, only done when the
+     * statistics are asked for. The counts are cached next to the visibility
+     * so other enums of the reader reuse them.
+     */
+    private TermStats countVisible() throws IOException {
+      BytesRef term = _in.term();
+      if (_stats == null) {
+        _stats = _reader._termVisibility.get(new Term(_field, term));
+      }
+      if (_stats != null && _stats.isCounted()) {
+        return _stats;
+      }
+      FixedBitSet access = _reader.getVisibleDocs();
+      DocsEnum docsEnum = _statsDocsEnum = _in.docs(null, _statsDocsEnum, DocsEnum.FLAG_FREQS);
+      int docFreq = 0;
+      long totalTermFreq = 0;
+      int doc = leapfrog(docsEnum, access, docsEnum.nextDoc());
+      while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+        docFreq++;
+        totalTermFreq += docsEnum.freq();
+        doc = leapfrog(docsEnum, access, docsEnum.nextDoc());
+      }
+      _stats = new TermStats(docFreq > 0, docFreq, totalTermFreq);
+      _reader._termVisibility.put(new Term(_field, BytesRef.deepCopyOf(term)), _stats);
+      return _stats;
+    }
+
+    private BytesRef nextVisible(BytesRef term) throws IOException {
+      while (term != null && !isVisible()) {
+        term = _in.next();
+      }
+      return term;
+    }
+
+    @Override
+    public AttributeSource attributes() {
+      return _in.attributes();
+    }
+
+    @Override
+    public Comparator<BytesRef> getComparator() {
+      return _in.getComparator();
+    }
+
+    @Override
+    public BytesRef next() throws IOException {
+      _stats = null;
+      if (_hideInvisibleTerms) {
+        return nextVisible(_in.next());
+      }
+      return _in.next();
+    }
+
+    @Override
+    public SeekStatus seekCeil(BytesRef text, boolean useCache) throws IOException {
+      _stats = null;
+      SeekStatus status = _in.seekCeil(text, useCache);
+      if (!_hideInvisibleTerms || status == SeekStatus.END || isVisible()) {
+        return status;
+      }
+      if (nextVisible(_in.next()) == null) {
+        return SeekStatus.END;
+      }
+      return SeekStatus.NOT_FOUND;
+    }
+
+    @Override
+    public boolean seekExact(BytesRef text, boolean useCache) throws IOException {
+      _stats = null;
+      if (!_in.seekExact(text, useCache)) {
+        return false;
+      }
+      return !_hideInvisibleTerms || isVisible();
+    }
+
+    /**
+     * Ords count the hidden terms too, so they are not supported when invisible
+     * terms are hidden.
+     */
+    @Override
+    public void seekExact(long ord) throws IOException {
+      if (_hideInvisibleTerms) {
+        throw new UnsupportedOperationException("Ords are not supported when invisible terms are hidden.");
+      }
+      _in.seekExact(ord);
+    }
+
+    /**
+     * Not checked because states are only handed out by {@link #termState()}
+     * of an enum positioned on a visible term, the postings of the term are
+     * intersected with the access bits either way.
+     */
+    @Override
+    public void seekExact(BytesRef term, TermState state) throws IOException {
+      _stats = null;
+      _in.seekExact(term, state);
+    }
+
+    @Override
+    public TermState termState() throws IOException {
+      return _in.termState();
+    }
+
+    @Override
+    public BytesRef term() throws IOException {
+      return _in.term();
+    }
+
+    /**
+     * Returns -1 when invisible terms are hidden because the ords would count
+     * the hidden terms.
+     */
+    @Override
+    public long ord() throws IOException {
+      if (_hideInvisibleTerms) {
+        return -1;
+      }
+      return _in.ord();
+    }
+
+    @Override
+    public int docFreq() throws IOException {
+      if (_hideInvisibleTerms) {
+        return countVisible()._docFreq;
+      }
+      return _in.docFreq();
+    }
+
+    @Override
+    public long totalTermFreq() throws IOException {
+      if (_hideInvisibleTerms) {
+        return countVisible()._totalTermFreq;
+      }
+      return _in.totalTermFreq();
     }
 
     @Override
     public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags) throws IOException {
-      Bits secureLiveDocs = getSecureLiveDocs(liveDocs, _maxDoc, _accessControlReader);
-      return in.docs(secureLiveDocs, reuse, flags);
+      DocsEnum inReuse = reuse instanceof SecureDocsEnum ? ((SecureDocsEnum) reuse)._in : reuse;
+      DocsEnum docsEnum = _in.docs(_reader.getPostingsLiveDocs(liveDocs), inReuse, flags);
+      if (docsEnum == null) {
+        return null;
+      }
+      SecureDocsEnum secureDocsEnum = reuse instanceof SecureDocsEnum ? (SecureDocsEnum) reuse : new SecureDocsEnum();
+      secureDocsEnum.reset(docsEnum, _reader.getPostingsAccess(liveDocs));
+      return secureDocsEnum;
     }
 
     @Override
     public DocsAndPositionsEnum docsAndPositions(Bits liveDocs, DocsAndPositionsEnum reuse, int flags)
         throws IOException {
-      Bits secureLiveDocs = getSecureLiveDocs(liveDocs, _maxDoc, _accessControlReader);
-      return in.docsAndPositions(secureLiveDocs, reuse, flags);
+      DocsAndPositionsEnum inReuse = reuse;
+      if (reuse instanceof SecureDocsAndPositionsEnum) {
+        inReuse = ((SecureDocsAndPositionsEnum) reuse)._in;
+      }
+      DocsAndPositionsEnum docsAndPositionsEnum = _in.docsAndPositions(_reader.getPostingsLiveDocs(liveDocs), inReuse,
+          flags);
+      if (docsAndPositionsEnum == null) {
+        return null;
+      }
+      SecureDocsAndPositionsEnum secureEnum;
+      if (reuse instanceof SecureDocsAndPositionsEnum) {
+        secureEnum = (SecureDocsAndPositionsEnum) reuse;
+      } else {
+        secureEnum = new SecureDocsAndPositionsEnum();
+      }
+      secureEnum.reset(docsAndPositionsEnum, _reader.getPostingsAccess(liveDocs));
+      return secureEnum;
+    }
+
+  }
+
+  /**
+   * Finds the next doc at or after doc that is in both the postings and the
+   * access bits, advancing whichever side is behind.
+   */
+  static int leapfrog(DocsEnum in, FixedBitSet access, int doc) throws IOException {
+    int length = access.length();
+    while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+      int accessDoc = doc < length ? access.nextSetBit(doc) : -1;
+      if (accessDoc < 0) {
+        return DocIdSetIterator.NO_MORE_DOCS;
+      }
+      if (accessDoc == doc) {
+        return doc;
+      }
+      doc = in.advance(accessDoc);
+    }
+    return doc;
+  }
+
+  static class SecureDocsEnum extends DocsEnum {
+
+    private DocsEnum _in;
+    private FixedBitSet _access;
+    private int _docId;
+
+    void reset(DocsEnum in, FixedBitSet access) {
+      _in = in;
+      _access = access;
+      _docId = -1;
+    }
+
+    @Override
+    public int freq() throws IOException {
+      return _in.freq();
+    }
+
+    @Override
+    public int docID() {
+      return _docId;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      return _docId = leapfrog(_in, _access, _in.nextDoc());
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      return _docId = leapfrog(_in, _access, _in.advance(target));
+    }
+
+    @Override
+    public long cost() {
+      return _in.cost();
+    }
+
+  }
+
+  static class SecureDocsAndPositionsEnum extends DocsAndPositionsEnum {
+
+    private DocsAndPositionsEnum _in;
+    private FixedBitSet _access;
+    private int _docId;
+
+    void reset(DocsAndPositionsEnum in, FixedBitSet access) {
+      _in = in;
+      _access = access;
+      _docId = -1;
+    }
+
+    @Override
+    public int freq() throws IOException {
+      return _in.freq();
+    }
+
+    @Override
+    public int docID() {
+      return _docId;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      return _docId = leapfrog(_in, _access, _in.nextDoc());
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      return _docId = leapfrog(_in, _access, _in.advance(target));
+    }
+
+    @Override
+    public int nextPosition() throws IOException {
+      return _in.nextPosition();
+    }
+
+    @Override
+    public int startOffset() throws IOException {
+      return _in.startOffset();
+    }
+
+    @Override
+    public int endOffset() throws IOException {
+      return _in.endOffset();
+    }
+
+    @Override
+    public BytesRef getPayload() throws IOException {
+      return _in.getPayload();
+    }
+
+    @Override
+    public long cost() {
+      return _in.cost();
     }
 
   }
@@ -17,10 +17,19 @@
 package lucene.security.index;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.FilterDirectoryReader;
 
@@ -34,13 +43,66 @@ public class SecureDirectoryReader extends FilterDirectoryReader {
     return new SecureDirectoryReader(in, accessControlReader);
   }
 
+  /**
+   * Same as {@link #create(AccessControlFactory, DirectoryReader, Collection, Collection, Set)}
+   * but the segments, including their access bits, are built in parallel on
+   * the executor.
+   */
+  public static SecureDirectoryReader create(AccessControlFactory accessControlFactory, DirectoryReader in,
+      Collection<String> readAuthorizations, Collection<String> discoverAuthorizations,
+      Set<String> discoverableFields, ExecutorService executor) throws IOException {
+    AccessControlReader accessControlReader = accessControlFactory.getReader(readAuthorizations,
+        discoverAuthorizations, discoverableFields);
+    if (executor == null) {
+      return new SecureDirectoryReader(in, accessControlReader);
+    }
+    final Map<Object, SecureAtomicReader> readers = createInParallel(in, accessControlReader, executor);
+    return new SecureDirectoryReader(in, accessControlReader, readers);
+  }
+
+  private static Map<Object, SecureAtomicReader> createInParallel(DirectoryReader in,
+      final AccessControlReader accessControlReader, ExecutorService executor) throws IOException {
+    List<Future<SecureAtomicReader>> futures = new ArrayList<Future<SecureAtomicReader>>();
+    for (AtomicReaderContext context : in.leaves()) {
+      final AtomicReader reader = context.reader();
+      futures.add(executor.submit(new Callable<SecureAtomicReader>() {
+        @Override
+        public SecureAtomicReader call() throws Exception {
+          SecureAtomicReader secureReader = new SecureAtomicReader(reader, accessControlReader);
+          secureReader.getLiveDocs();
+          return secureReader;
+        }
+      }));
+    }
+    Map<Object, SecureAtomicReader> readers = new HashMap<Object, SecureAtomicReader>();
+    for (SecureAtomicReader secureReader : Futures.getAll(futures)) {
+      readers.put(secureReader.getOriginalReader().getCoreCacheKey(), secureReader);
+    }
+    return readers;
+  }
+
   private final DirectoryReader _original;
+  private final AccessControlReader _accessControlReader;
+
+  public SecureDirectoryReader(DirectoryReader in, AccessControlReader accessControlReader) {
+    this(in, accessControlReader, Collections.<Object, SecureAtomicReader> emptyMap());
+  }
 
-  public SecureDirectoryReader(DirectoryReader in, final AccessControlReader accessControlReader) {
-    super(in, new SubReaderWrapper() {
+  private SecureDirectoryReader(DirectoryReader in, final AccessControlReader accessControlReader,
+      final Map<Object, SecureAtomicReader> previousReaders) {
+    this(in, accessControlReader, new SubReaderWrapper() {
 
       @Override
       public AtomicReader wrap(AtomicReader reader) {
+        SecureAtomicReader previous = previousReaders.get(reader.getCoreCacheKey());
+        if (previous != null) {
+          if (previous.getOriginalReader() == reader) {
+            // Unchanged segment.
+            return previous;
+          }
+          // Same segment with new deletes.
+          return new SecureAtomicReader(reader, previous);
+        }
         try {
           return new SecureAtomicReader(reader, accessControlReader);
         } catch (IOException e) {
@@ -48,7 +110,17 @@ public class SecureDirectoryReader extends FilterDirectoryReader {
         }
       }
     });
+  }
+
+  /**
+   * @param wrapper
+   *          must wrap every segment in a {@link SecureAtomicReader} created
+   *          from accessControlReader.
+   */
+  SecureDirectoryReader(DirectoryReader in, AccessControlReader accessControlReader, SubReaderWrapper wrapper) {
+    super(in, wrapper);
     _original = in;
+    _accessControlReader = accessControlReader;
   }
 
   public DirectoryReader getOriginal() {
@@ -60,7 +132,14 @@ public class SecureDirectoryReader extends FilterDirectoryReader {
     if (in instanceof SecureDirectoryReader) {
       return in;
     }
-    throw new RuntimeException("Not allowed.");
+    // Reopened, only new segments need a new access control clone.
+    Map<Object, SecureAtomicReader> previousReaders = new HashMap<Object, SecureAtomicReader>();
+    for (AtomicReaderContext context : leaves()) {
+      SecureAtomicReader reader = (SecureAtomicReader) context.reader();
+      // A SecureAtomicReader is its own core key, key by the wrapped reader.
+      previousReaders.put(reader.getOriginalReader().getCoreCacheKey(), reader);
+    }
+    return new SecureDirectoryReader(in, _accessControlReader, previousReaders);
   }
 
 }
\ No newline at end of file
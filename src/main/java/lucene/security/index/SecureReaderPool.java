@@ -0,0 +1,418 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterDirectoryReader.SubReaderWrapper;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReader.ReaderClosedListener;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SegmentReader.CoreClosedListener;
+
+import com.google.common.collect.MapMaker;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+/**
+ * A long lived pool of secure readers, so a search for a user is a lookup by
+ * (base reader, authorizations) instead of wrapping and cloning every segment.
+ * Segments are pooled by segment core, so successive base readers share
+ * unchanged segments and segments that only gained new deletes reuse the
+ * access of the previous secure segment.
+ * 
+ * Readers handed out are owned by the pool and must not be closed, they are
+ * dropped when the base reader they wrap is closed. All pooled readers share a
+ * single LRU bounded by the bytes of their access bits. A pooled
+ * {@link DirectoryReader} holds its secure segments, so it is weighed by the
+ * bits of all of them and segments it shares with the segment entries are
+ * counted twice.
+ */
+public class SecureReaderPool {
+
+  public static final int DEFAULT_MAX_AUTHORIZATION_SETS = 1000;
+
+  /**
+   * Default memory budget for the access bits, a quarter of the max heap.
+   */
+  public static final long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+  private final AccessControlFactory _accessControlFactory;
+  private final ConcurrentLinkedHashMap<AuthorizationKey, AccessControlReader> _accessControlReaders;
+  private final ConcurrentLinkedHashMap<PoolKey, IndexReader> _secureReaders;
+  // The keys of every base reader and segment core with a close listener, so
+  // a close only removes its own entries.
+  private final ConcurrentMap<Object, Set<PoolKey>> _ownerKeys;
+  private final Map<Object, Boolean> _closedOwners;
+
+  public SecureReaderPool(AccessControlFactory accessControlFactory) {
+    this(accessControlFactory, DEFAULT_MAX_AUTHORIZATION_SETS);
+  }
+
+  public SecureReaderPool(AccessControlFactory accessControlFactory, int maxAuthorizationSets) {
+    this(accessControlFactory, maxAuthorizationSets, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param maxAuthorizationSets
+   *          the number of authorization sets whose access control readers are
+   *          kept.
+   * @param maxBytes
+   *          the budget for the access bits of the pooled readers, least
+   *          recently used readers are rebuilt when needed again.
+   */
+  public SecureReaderPool(AccessControlFactory accessControlFactory, int maxAuthorizationSets, long maxBytes) {
+    _accessControlFactory = accessControlFactory;
+    _accessControlReaders = new ConcurrentLinkedHashMap.Builder<AuthorizationKey, AccessControlReader>()
+        .maximumWeightedCapacity(maxAuthorizationSets).build();
+    _secureReaders = new ConcurrentLinkedHashMap.Builder<PoolKey, IndexReader>().maximumWeightedCapacity(maxBytes)
+        .weigher(new Weigher<IndexReader>() {
+          @Override
+          public int weightOf(IndexReader secureReader) {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(1L, sizeInBytes(secureReader)));
+          }
+        }).listener(new EvictionListener<PoolKey, IndexReader>() {
+          @Override
+          public void onEviction(PoolKey key, IndexReader secureReader) {
+            Set<PoolKey> keys = _ownerKeys.get(key._owner);
+            if (keys != null) {
+              keys.remove(key);
+            }
+          }
+        }).build();
+    _ownerKeys = new ConcurrentHashMap<Object, Set<PoolKey>>();
+    _closedOwners = new MapMaker().weakKeys().makeMap();
+  }
+
+  public AccessControlFactory getAccessControlFactory() {
+    return _accessControlFactory;
+  }
+
+  public AccessControlReader getAccessControlReader(Collection<String> readAuthorizations,
+      Collection<String> discoverAuthorizations, Set<String> discoverableFields) {
+    return getAccessControlReader(new AuthorizationKey(readAuthorizations, discoverAuthorizations, discoverableFields));
+  }
+
+  public IndexReader getSecureIndexReader(IndexReader reader, Collection<String> readAuthorizations,
+      Collection<String> discoverAuthorizations, Set<String> discoverableFields) throws IOException {
+    return getSecureIndexReader(reader, null, readAuthorizations, discoverAuthorizations, discoverableFields);
+  }
+
+  /**
+   * @param executor
+   *          if not null the segments missing from the pool are secured in
+   *          parallel on it.
+   */
+  public IndexReader getSecureIndexReader(IndexReader reader, ExecutorService executor,
+      Collection<String> readAuthorizations, Collection<String> discoverAuthorizations, Set<String> discoverableFields)
+      throws IOException {
+    final AuthorizationKey key = new AuthorizationKey(readAuthorizations, discoverAuthorizations, discoverableFields);
+    final AccessControlReader accessControlReader = getAccessControlReader(key);
+    if (reader instanceof AtomicReader) {
+      return getSecureAtomicReader((AtomicReader) reader, key, accessControlReader);
+    } else if (!(reader instanceof DirectoryReader)) {
+      throw new IOException("IndexReader type [" + reader.getClass() + "] not supported.");
+    }
+    PoolKey poolKey = new PoolKey(reader, key);
+    IndexReader secureReader = _secureReaders.get(poolKey);
+    if (secureReader != null) {
+      return secureReader;
+    }
+    if (executor != null) {
+      createInParallel((DirectoryReader) reader, key, accessControlReader, executor);
+    }
+    secureReader = new SecureDirectoryReader((DirectoryReader) reader, accessControlReader, new SubReaderWrapper() {
+      @Override
+      public AtomicReader wrap(AtomicReader reader) {
+        try {
+          return getSecureAtomicReader(reader, key, accessControlReader);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    IndexReader existing = put(reader, reader, poolKey, secureReader);
+    if (existing != null) {
+      return existing;
+    }
+    return secureReader;
+  }
+
+  /**
+   * Gets the pooled secure reader of the segment, a reader of the same core
+   * with other deletes is wrapped reusing the access of the pooled one.
+   */
+  private SecureAtomicReader getSecureAtomicReader(AtomicReader reader, AuthorizationKey key,
+      AccessControlReader accessControlReader) throws IOException {
+    Object coreCacheKey = reader.getCoreCacheKey();
+    PoolKey poolKey = new PoolKey(coreCacheKey, key);
+    SecureAtomicReader previous = (SecureAtomicReader) _secureReaders.get(poolKey);
+    if (previous != null && previous.getOriginalReader() == reader) {
+      return previous;
+    }
+    if (previous != null) {
+      // Same segment with other deletes.
+      SecureAtomicReader secureReader = new SecureAtomicReader(reader, previous);
+      _secureReaders.replace(poolKey, previous, secureReader);
+      return secureReader;
+    }
+    SecureAtomicReader secureReader = new SecureAtomicReader(reader, accessControlReader);
+    SecureAtomicReader existing = (SecureAtomicReader) put(coreCacheKey, reader, poolKey, secureReader);
+    if (existing != null && existing.getOriginalReader() == reader) {
+      return existing;
+    }
+    return secureReader;
+  }
+
+  private void createInParallel(DirectoryReader reader, final AuthorizationKey key,
+      final AccessControlReader accessControlReader, ExecutorService executor) throws IOException {
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (AtomicReaderContext context : reader.leaves()) {
+      final AtomicReader atomicReader = context.reader();
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          getSecureAtomicReader(atomicReader, key, accessControlReader).getLiveDocs();
+          return null;
+        }
+      }));
+    }
+    Futures.getAll(futures);
+  }
+
+  private AccessControlReader getAccessControlReader(AuthorizationKey key) {
+    AccessControlReader accessControlReader = _accessControlReaders.get(key);
+    if (accessControlReader == null) {
+      accessControlReader = _accessControlFactory.getReader(key._readAuthorizations, key._discoverAuthorizations,
+          key._discoverableFields);
+      AccessControlReader existing = _accessControlReaders.putIfAbsent(key, accessControlReader);
+      if (existing != null) {
+        return existing;
+      }
+    }
+    return accessControlReader;
+  }
+
+  /**
+   * Pools the secure reader unless one is already pooled under the key, which
+   * is returned instead. The key is tracked with its owner, the base reader or
+   * segment core it was built for.
+   */
+  private IndexReader put(Object owner, IndexReader reader, PoolKey poolKey, IndexReader secureReader) {
+    IndexReader existing = _secureReaders.putIfAbsent(poolKey, secureReader);
+    if (existing != null) {
+      return existing;
+    }
+    boolean tracked = false;
+    try {
+      Set<PoolKey> keys = getOwnerKeys(owner, reader);
+      if (keys != null) {
+        keys.add(poolKey);
+        tracked = true;
+      }
+    } finally {
+      // The owner may have closed before the key was added, or before the
+      // listener was added in which case it may never be called.
+      if (!tracked || reader.getRefCount() <= 0 || _closedOwners.containsKey(owner)) {
+        remove(owner);
+        _secureReaders.remove(poolKey, secureReader);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the keys of the owner, registering a single listener per owner that
+   * drops them once it closes. Segment cores are dropped when the last reader
+   * sharing the core closes, other atomic readers can not be observed that way
+   * so their entries are dropped with the reader. Returns null once the owner
+   * has closed.
+   */
+  private Set<PoolKey> getOwnerKeys(final Object owner, IndexReader reader) {
+    Set<PoolKey> keys = _ownerKeys.get(owner);
+    if (keys != null) {
+      return keys;
+    }
+    if (_closedOwners.containsKey(owner)) {
+      return null;
+    }
+    keys = Collections.newSetFromMap(new ConcurrentHashMap<PoolKey, Boolean>());
+    Set<PoolKey> existing = _ownerKeys.putIfAbsent(owner, keys);
+    if (existing != null) {
+      return existing;
+    }
+    if (owner != reader && reader instanceof SegmentReader) {
+      ((SegmentReader) reader).addCoreClosedListener(new CoreClosedListener() {
+        @Override
+        public void onClose(SegmentReader segmentReader) {
+          purge(owner);
+        }
+      });
+    } else {
+      reader.addReaderClosedListener(new ReaderClosedListener() {
+        @Override
+        public void onClose(IndexReader reader) {
+          purge(owner);
+        }
+      });
+    }
+    return keys;
+  }
+
+  private void purge(Object owner) {
+    _closedOwners.put(owner, Boolean.TRUE);
+    remove(owner);
+  }
+
+  private void remove(Object owner) {
+    Set<PoolKey> keys = _ownerKeys.remove(owner);
+    if (keys == null) {
+      return;
+    }
+    for (PoolKey key : keys) {
+      _secureReaders.remove(key);
+    }
+  }
+
+  /**
+   * Upper bound of the bytes of the access bits held by a pooled reader.
+   */
+  private static long sizeInBytes(IndexReader secureReader) {
+    if (secureReader instanceof SecureAtomicReader) {
+      return ((SecureAtomicReader) secureReader).sizeInBytes();
+    }
+    long sizeInBytes = 0;
+    for (AtomicReaderContext context : secureReader.leaves()) {
+      AtomicReader reader = context.reader();
+      if (reader instanceof SecureAtomicReader) {
+        sizeInBytes += ((SecureAtomicReader) reader).sizeInBytes();
+      }
+    }
+    return sizeInBytes;
+  }
+
+  /**
+   * The number of pooled secure readers.
+   */
+  int size() {
+    return _secureReaders.size();
+  }
+
+  /**
+   * The bytes of the pooled readers as weighed when they were added.
+   */
+  long getSizeInBytes() {
+    return _secureReaders.weightedSize();
+  }
+
+  /**
+   * A pooled reader, the owner is the base {@link DirectoryReader} or the core
+   * cache key of the segment.
+   */
+  static class PoolKey {
+
+    private final Object _owner;
+    private final AuthorizationKey _authorizationKey;
+
+    PoolKey(Object owner, AuthorizationKey authorizationKey) {
+      _owner = owner;
+      _authorizationKey = authorizationKey;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(_owner) + _authorizationKey.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof PoolKey)) {
+        return false;
+      }
+      PoolKey other = (PoolKey) obj;
+      return _owner == other._owner && _authorizationKey.equals(other._authorizationKey);
+    }
+  }
+
+  /**
+   * The authorizations of a request in a canonical order.
+   */
+  static class AuthorizationKey {
+
+    private final List<String> _readAuthorizations;
+    private final List<String> _discoverAuthorizations;
+    private final Set<String> _discoverableFields;
+    private final int _hashCode;
+
+    AuthorizationKey(Collection<String> readAuthorizations, Collection<String> discoverAuthorizations,
+        Set<String> discoverableFields) {
+      _readAuthorizations = sort(readAuthorizations);
+      _discoverAuthorizations = sort(discoverAuthorizations);
+      _discoverableFields = discoverableFields == null ? Collections.<String> emptySet() : Collections
+          .unmodifiableSet(new TreeSet<String>(discoverableFields));
+      _hashCode = 31 * (31 * _readAuthorizations.hashCode() + _discoverAuthorizations.hashCode())
+          + _discoverableFields.hashCode();
+    }
+
+    private static List<String> sort(Collection<String> authorizations) {
+      if (authorizations == null) {
+        return Collections.emptyList();
+      }
+      List<String> list = new ArrayList<String>(new TreeSet<String>(authorizations));
+      return Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof AuthorizationKey)) {
+        return false;
+      }
+      AuthorizationKey other = (AuthorizationKey) obj;
+      return _hashCode == other._hashCode && _readAuthorizations.equals(other._readAuthorizations)
+          && _discoverAuthorizations.equals(other._discoverAuthorizations)
+          && _discoverableFields.equals(other._discoverableFields);
+    }
+  }
+
+}
@@ -17,7 +17,14 @@
 package lucene.security.search;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lucene.security.DocumentAuthorizations;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -25,42 +32,112 @@ import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexReader.ReaderClosedListener;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SegmentReader.CoreClosedListener;
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.OpenBitSet;
 
 import com.google.common.collect.MapMaker;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
 
+/**
+ * Caches the visible {@link DocIdSet}s per (field, term, segment) and per
+ * (field, authorizations, segment) in a single LRU bounded by the number of
+ * bytes held by the cached bitsets.
+ */
 public class BitSetDocumentVisibilityFilterCacheStrategy extends DocumentVisibilityFilterCacheStrategy {
 
   private static final Log LOG = LogFactory.getLog(BitSetDocumentVisibilityFilterCacheStrategy.class);
 
+  /**
+   * Default memory budget, a quarter of the max heap.
+   */
+  public static final long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
   public static final DocumentVisibilityFilterCacheStrategy INSTANCE = new BitSetDocumentVisibilityFilterCacheStrategy();
 
-  private final ConcurrentMap<Key, DocIdSet> _cache;
+  private final ConcurrentLinkedHashMap<Key, DocIdSet> _cache;
+  // The keys of every core with a close listener, so a closed core only
+  // removes its own entries.
+  private final ConcurrentMap<Object, Set<Key>> _coreKeys;
+  private final Map<Object, Boolean> _closedCores;
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final AtomicLong _evictions = new AtomicLong();
 
   public BitSetDocumentVisibilityFilterCacheStrategy() {
-    _cache = new MapMaker().makeMap();
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  public BitSetDocumentVisibilityFilterCacheStrategy(long maxBytes) {
+    _cache = new ConcurrentLinkedHashMap.Builder<Key, DocIdSet>().maximumWeightedCapacity(maxBytes)
+        .weigher(new Weigher<DocIdSet>() {
+          @Override
+          public int weightOf(DocIdSet docIdSet) {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(1L, sizeInBytes(docIdSet)));
+          }
+        }).listener(new EvictionListener<Key, DocIdSet>() {
+          @Override
+          public void onEviction(Key key, DocIdSet docIdSet) {
+            LOG.debug("Evicted bitset for key [" + key + "]");
+            _evictions.incrementAndGet();
+            Set<Key> keys = _coreKeys.get(key._object);
+            if (keys != null) {
+              keys.remove(key);
+            }
+          }
+        }).build();
+    _coreKeys = new ConcurrentHashMap<Object, Set<Key>>();
+    _closedCores = new MapMaker().weakKeys().makeMap();
   }
 
   @Override
-  public DocIdSet getDocIdSet(String fieldName, BytesRef term, AtomicReader reader) {
-    Key key = new Key(fieldName, term, reader.getCoreCacheKey());
-    DocIdSet docIdSet = _cache.get(key);
-    if (docIdSet != null) {
-      LOG.debug("Cache hit for key [" + key + "]");
-    } else {
-      LOG.debug("Cache miss for key [" + key + "]");
-    }
-    return docIdSet;
+  public DocIdSet getDocIdSet(String fieldName, BytesRef term, AtomicReader reader) throws IOException {
+    return get(new Key(fieldName, term, reader.getCoreCacheKey(), false));
   }
 
   @Override
-  public Builder createBuilder(String fieldName, BytesRef term, final AtomicReader reader) {
-    final OpenBitSet bitSet = new OpenBitSet(reader.maxDoc());
-    final Key key = new Key(fieldName, term, reader.getCoreCacheKey());
-    LOG.debug("Creating new bitset for key [" + key + "] on index [" + reader + "]");
+  public boolean isCached(String fieldName, BytesRef term, AtomicReader reader) throws IOException {
+    return _cache.containsKey(new Key(fieldName, term, reader.getCoreCacheKey(), false));
+  }
+
+  @Override
+  public Builder createBuilder(String fieldName, BytesRef term, final AtomicReader reader) throws IOException {
+    final Key key = new Key(fieldName, term, reader.getCoreCacheKey(), false);
+    final Builder builder = newBuilder(reader.maxDoc());
+    LOG.debug("Creating new builder for key [" + key + "] on index [" + reader + "]");
+    return new Builder() {
+      @Override
+      public void or(DocIdSetIterator it) throws IOException {
+        builder.or(it);
+      }
+
+      @Override
+      public DocIdSet getDocIdSet() throws IOException {
+        return put(reader, key, builder.getDocIdSet());
+      }
+    };
+  }
+
+  /**
+   * Caches the {@link DocIdSet} of a single term and returns the
+   * {@link DocIdSet} that should be used.
+   */
+  protected DocIdSet cacheDocIdSet(String fieldName, BytesRef term, AtomicReader reader, DocIdSet docIdSet) {
+    return put(reader, new Key(fieldName, term, reader.getCoreCacheKey(), false), docIdSet);
+  }
+
+  /**
+   * Creates the {@link Builder} that accumulates the documents of a single
+   * term, the default always uses an {@link OpenBitSet}.
+   */
+  protected Builder newBuilder(int maxDoc) {
+    final OpenBitSet bitSet = new OpenBitSet(maxDoc);
     return new Builder() {
       @Override
       public void or(DocIdSetIterator it) throws IOException {
@@ -72,38 +149,186 @@ public class BitSetDocumentVisibilityFilterCacheStrategy extends DocumentVisibil
 
       @Override
       public DocIdSet getDocIdSet() throws IOException {
-        reader.addReaderClosedListener(new ReaderClosedListener() {
-          @Override
-          public void onClose(IndexReader reader) {
-            LOG.debug("Removing old bitset for key [" + key + "]");
-            DocIdSet docIdSet = _cache.remove(key);
-            if (docIdSet == null) {
-              LOG.warn("DocIdSet was missing for key [" + docIdSet + "]");
-            }
-          }
-        });
-        _cache.put(key, bitSet);
         return bitSet;
       }
     };
   }
 
+  @Override
+  public DocIdSet getDocIdSet(String fieldName, DocumentAuthorizations authorizations, AtomicReader reader) {
+    return get(getAuthorizationsKey(fieldName, authorizations, reader));
+  }
+
+  @Override
+  public DocIdSet cacheDocIdSet(String fieldName, DocumentAuthorizations authorizations, AtomicReader reader,
+      DocIdSet docIdSet) {
+    return put(reader, getAuthorizationsKey(fieldName, authorizations, reader), docIdSet);
+  }
+
+  /**
+   * The serialized form of the authorizations is sorted, so users with the
+   * same authorizations in any order share the same entry.
+   */
+  private Key getAuthorizationsKey(String fieldName, DocumentAuthorizations authorizations, AtomicReader reader) {
+    return new Key(fieldName, new BytesRef(authorizations.getAuthorizationsArray()), reader.getCoreCacheKey(), true);
+  }
+
+  private DocIdSet get(Key key) {
+    DocIdSet docIdSet = _cache.get(key);
+    if (docIdSet != null) {
+      _hits.incrementAndGet();
+      LOG.debug("Cache hit for key [" + key + "]");
+    } else {
+      _misses.incrementAndGet();
+      LOG.debug("Cache miss for key [" + key + "]");
+    }
+    return docIdSet;
+  }
+
+  private DocIdSet put(AtomicReader reader, Key key, DocIdSet docIdSet) {
+    DocIdSet existing = _cache.putIfAbsent(key, docIdSet);
+    if (existing != null) {
+      return existing;
+    }
+    Object coreCacheKey = key._object;
+    Set<Key> keys = getCoreKeys(reader);
+    if (keys != null) {
+      keys.add(key);
+    }
+    // The core may have closed before the key was added.
+    if (_closedCores.containsKey(coreCacheKey)) {
+      if (keys != null) {
+        _coreKeys.remove(coreCacheKey, keys);
+      }
+      if (_cache.remove(key, docIdSet)) {
+        release(docIdSet);
+      }
+    }
+    return docIdSet;
+  }
+
+  /**
+   * Gets the keys of the reader's core, registering a single listener per
+   * segment core that drops them once the last reader sharing the core closes.
+   * Readers reopened with new deletes share the core and keep using its
+   * entries, so closing one of them must not purge anything. Returns null for
+   * readers whose core close can not be observed, their entries are left to
+   * the LRU eviction.
+   */
+  private Set<Key> getCoreKeys(AtomicReader reader) {
+    final Object coreCacheKey = reader.getCoreCacheKey();
+    Set<Key> keys = _coreKeys.get(coreCacheKey);
+    if (keys != null) {
+      return keys;
+    }
+    if (_closedCores.containsKey(coreCacheKey)) {
+      return null;
+    }
+    if (!(reader instanceof SegmentReader) && coreCacheKey != reader) {
+      LOG.debug("Can not observe the core close of [" + reader + "], entries are only evicted.");
+      return null;
+    }
+    keys = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+    Set<Key> existing = _coreKeys.putIfAbsent(coreCacheKey, keys);
+    if (existing != null) {
+      return existing;
+    }
+    if (reader instanceof SegmentReader) {
+      ((SegmentReader) reader).addCoreClosedListener(new CoreClosedListener() {
+        @Override
+        public void onClose(SegmentReader owner) {
+          purge(coreCacheKey);
+        }
+      });
+    } else {
+      reader.addReaderClosedListener(new ReaderClosedListener() {
+        @Override
+        public void onClose(IndexReader reader) {
+          purge(coreCacheKey);
+        }
+      });
+    }
+    return keys;
+  }
+
+  private void purge(Object coreCacheKey) {
+    LOG.debug("Removing old bitsets for core [" + coreCacheKey + "]");
+    _closedCores.put(coreCacheKey, Boolean.TRUE);
+    Set<Key> keys = _coreKeys.remove(coreCacheKey);
+    if (keys == null) {
+      return;
+    }
+    for (Key key : keys) {
+      DocIdSet docIdSet = _cache.remove(key);
+      if (docIdSet != null) {
+        release(docIdSet);
+      }
+    }
+  }
+
+  /**
+   * Called when a {@link DocIdSet} is dropped because its segment core closed.
+   * Evicted entries are not released because open readers may still use them.
+   */
+  protected void release(DocIdSet docIdSet) {
+
+  }
+
+  /**
+   * Estimates the heap used by the given {@link DocIdSet}.
+   */
+  protected long sizeInBytes(DocIdSet docIdSet) {
+    if (docIdSet instanceof OpenBitSet) {
+      return ((OpenBitSet) docIdSet).getBits().length * 8L;
+    } else if (docIdSet instanceof FixedBitSet) {
+      return ((FixedBitSet) docIdSet).getBits().length * 8L;
+    }
+    return 1L;
+  }
+
+  public long getHitCount() {
+    return _hits.get();
+  }
+
+  public long getMissCount() {
+    return _misses.get();
+  }
+
+  public long getEvictionCount() {
+    return _evictions.get();
+  }
+
+  public long getSizeInBytes() {
+    return _cache.weightedSize();
+  }
+
+  public long getMaxBytes() {
+    return _cache.capacity();
+  }
+
+  public void setMaxBytes(long maxBytes) {
+    _cache.setCapacity(maxBytes);
+  }
+
   private static class Key {
 
     private final Object _object;
     private final BytesRef _term;
     private final String _fieldName;
+    private final boolean _authorizations;
 
-    public Key(String fieldName, BytesRef term, Object object) {
+    public Key(String fieldName, BytesRef term, Object object, boolean authorizations) {
       _fieldName = fieldName;
       _term = BytesRef.deepCopyOf(term);
       _object = object;
+      _authorizations = authorizations;
     }
 
     @Override
     public int hashCode() {
       final int prime = 31;
       int result = 1;
+      result = prime * result + (_authorizations ? 1231 : 1237);
       result = prime * result + ((_fieldName == null) ? 0 : _fieldName.hashCode());
       result = prime * result + ((_object == null) ? 0 : _object.hashCode());
       result = prime * result + ((_term == null) ? 0 : _term.hashCode());
@@ -119,6 +344,8 @@ public class BitSetDocumentVisibilityFilterCacheStrategy extends DocumentVisibil
       if (getClass() != obj.getClass())
         return false;
       Key other = (Key) obj;
+      if (_authorizations != other._authorizations)
+        return false;
       if (_fieldName == null) {
         if (other._fieldName != null)
           return false;
@@ -139,14 +366,16 @@ public class BitSetDocumentVisibilityFilterCacheStrategy extends DocumentVisibil
 
     @Override
     public String toString() {
-      return "Key [_object=" + _object + ", _fieldName=" + _fieldName + ", _term=" + _term + "]";
+      return "Key [_object=" + _object + ", _fieldName=" + _fieldName + ", _term=" + _term + ", _authorizations="
+          + _authorizations + "]";
     }
 
   }
 
   @Override
   public String toString() {
-    return "BitSetDocumentVisibilityFilterCacheStrategy [_cache=" + _cache + "]";
+    return "BitSetDocumentVisibilityFilterCacheStrategy [_hits=" + _hits + ", _misses=" + _misses + ", _evictions="
+        + _evictions + ", _sizeInBytes=" + getSizeInBytes() + ", _maxBytes=" + getMaxBytes() + "]";
   }
 
 }
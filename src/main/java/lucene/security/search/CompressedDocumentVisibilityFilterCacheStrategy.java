@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Picks the representation of each cached term by density. Terms that match
+ * fewer than densityThreshold * maxDoc documents are stored as a
+ * {@link SortedIntDocIdSet}, everything else as an {@link OpenBitSet}.
+ */
+public class CompressedDocumentVisibilityFilterCacheStrategy extends BitSetDocumentVisibilityFilterCacheStrategy {
+
+  /**
+   * At 1/64 of maxDoc the int array uses half the memory of a bitset.
+   */
+  public static final double DEFAULT_DENSITY_THRESHOLD = 1.0 / 64.0;
+
+  private final double _densityThreshold;
+
+  public CompressedDocumentVisibilityFilterCacheStrategy() {
+    this(DEFAULT_MAX_BYTES, DEFAULT_DENSITY_THRESHOLD);
+  }
+
+  public CompressedDocumentVisibilityFilterCacheStrategy(long maxBytes, double densityThreshold) {
+    super(maxBytes);
+    _densityThreshold = densityThreshold;
+  }
+
+  @Override
+  protected Builder newBuilder(final int maxDoc) {
+    final int maxSparseDocs = (int) (maxDoc * _densityThreshold);
+    return new Builder() {
+
+      private int[] _docs = new int[Math.min(16, maxSparseDocs + 1)];
+      private int _size;
+      private boolean _sorted = true;
+      private OpenBitSet _bitSet;
+
+      @Override
+      public void or(DocIdSetIterator it) throws IOException {
+        int doc;
+        while ((doc = it.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+          if (_bitSet != null) {
+            _bitSet.fastSet(doc);
+            continue;
+          }
+          if (_size == maxSparseDocs) {
+            _bitSet = toBitSet();
+            _bitSet.fastSet(doc);
+            _docs = null;
+            continue;
+          }
+          if (_size == _docs.length) {
+            _docs = ArrayUtil.grow(_docs, _size + 1);
+          }
+          if (_size > 0 && _docs[_size - 1] >= doc) {
+            _sorted = false;
+          }
+          _docs[_size++] = doc;
+        }
+      }
+
+      private OpenBitSet toBitSet() {
+        OpenBitSet bitSet = new OpenBitSet(maxDoc);
+        for (int i = 0; i < _size; i++) {
+          bitSet.fastSet(_docs[i]);
+        }
+        return bitSet;
+      }
+
+      @Override
+      public DocIdSet getDocIdSet() throws IOException {
+        if (_bitSet != null) {
+          return _bitSet;
+        }
+        if (!_sorted) {
+          Arrays.sort(_docs, 0, _size);
+          int unique = 0;
+          for (int i = 0; i < _size; i++) {
+            if (unique == 0 || _docs[unique - 1] != _docs[i]) {
+              _docs[unique++] = _docs[i];
+            }
+          }
+          _size = unique;
+        }
+        int[] docs = _docs.length == _size ? _docs : Arrays.copyOf(_docs, _size);
+        return new SortedIntDocIdSet(docs, _size, maxDoc);
+      }
+    };
+  }
+
+  @Override
+  protected long sizeInBytes(DocIdSet docIdSet) {
+    if (docIdSet instanceof SortedIntDocIdSet) {
+      return ((SortedIntDocIdSet) docIdSet).sizeInBytes();
+    }
+    return super.sizeInBytes(docIdSet);
+  }
+
+  @Override
+  public String toString() {
+    return "CompressedDocumentVisibilityFilterCacheStrategy [_densityThreshold=" + _densityThreshold + ", "
+        + super.toString() + "]";
+  }
+
+}
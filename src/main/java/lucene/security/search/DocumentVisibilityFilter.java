@@ -19,12 +19,11 @@ package lucene.security.search;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.List;
 
 import lucene.security.DocumentAuthorizations;
 import lucene.security.DocumentVisibility;
-import lucene.security.DocumentVisibilityEvaluator;
+import lucene.security.accumulo.VisibilityParseException;
 import lucene.security.search.DocumentVisibilityFilterCacheStrategy.Builder;
 
 import org.apache.lucene.index.AtomicReader;
@@ -38,17 +37,26 @@ import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.PriorityQueue;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 
 public class DocumentVisibilityFilter extends Filter {
 
-  private static final Comparator<DocIdSetIterator> COMPARATOR = new Comparator<DocIdSetIterator>() {
-    @Override
-    public int compare(DocIdSetIterator o1, DocIdSetIterator o2) {
-      int docID1 = o1.docID();
-      int docID2 = o2.docID();
-      return docID1 - docID2;
-    }
-  };
+  /**
+   * Number of sub {@link DocIdSet}s at which the OR iterator is served from a
+   * single union bitset instead of a heap of iterators.
+   */
+  private static final int BITSET_ITERATOR_THRESHOLD = 64;
+  static final int MAX_CACHED_VISIBILITIES = 10000;
+  static final int MAX_CACHED_RESULTS = 100000;
+
+  // Shared by every filter so repeated searches do not parse the same terms.
+  private static final ConcurrentLinkedHashMap<BytesRef, DocumentVisibility> VISIBILITY_CACHE = new ConcurrentLinkedHashMap.Builder<BytesRef, DocumentVisibility>()
+      .maximumWeightedCapacity(MAX_CACHED_VISIBILITIES).build();
+  private static final ConcurrentLinkedHashMap<VisibleKey, Boolean> VISIBLE_CACHE = new ConcurrentLinkedHashMap.Builder<VisibleKey, Boolean>()
+      .maximumWeightedCapacity(MAX_CACHED_RESULTS).build();
 
   private final String _fieldName;
   private final DocumentAuthorizations _authorizations;
@@ -70,6 +78,14 @@ public class DocumentVisibilityFilter extends Filter {
   @Override
   public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
     AtomicReader reader = context.reader();
+    DocIdSet result = _filterCacheStrategy.getDocIdSet(_fieldName, _authorizations, reader);
+    if (result != null) {
+      return result;
+    }
+    return _filterCacheStrategy.cacheDocIdSet(_fieldName, _authorizations, reader, getVisibleDocIdSet(reader));
+  }
+
+  private DocIdSet getVisibleDocIdSet(AtomicReader reader) throws IOException {
     List<DocIdSet> list = new ArrayList<DocIdSet>();
 
     Fields fields = reader.fields();
@@ -80,9 +96,10 @@ public class DocumentVisibilityFilter extends Filter {
     }
     TermsEnum iterator = terms.iterator(null);
     BytesRef bytesRef;
-    DocumentVisibilityEvaluator visibilityEvaluator = new DocumentVisibilityEvaluator(_authorizations);
+    long[] authorizationMask = _authorizations.getAuthorizationMask();
+    VisibleKey key = new VisibleKey(authorizationMask);
     while ((bytesRef = iterator.next()) != null) {
-      if (isVisible(visibilityEvaluator, bytesRef)) {
+      if (isVisible(key, bytesRef)) {
         DocIdSet docIdSet = _filterCacheStrategy.getDocIdSet(_fieldName, bytesRef, reader);
         if (docIdSet != null) {
           list.add(docIdSet);
@@ -94,26 +111,132 @@ public class DocumentVisibilityFilter extends Filter {
         }
       }
     }
-    return getLogicalOr(list);
+    return getUnion(list, reader.maxDoc());
   }
 
   private DocIdSet buildCache(AtomicReader reader, DocIdSetIterator it, BytesRef bytesRef) throws IOException {
-    Builder builder = _filterCacheStrategy.createBuilder(_fieldName, bytesRef, reader);
+    return buildCache(_filterCacheStrategy, _fieldName, reader, it, bytesRef);
+  }
+
+  static DocIdSet buildCache(DocumentVisibilityFilterCacheStrategy filterCacheStrategy, String fieldName,
+      AtomicReader reader, DocIdSetIterator it, BytesRef bytesRef) throws IOException {
+    Builder builder = filterCacheStrategy.createBuilder(fieldName, bytesRef, reader);
     builder.or(it);
     return builder.getDocIdSet();
   }
 
-  private boolean isVisible(DocumentVisibilityEvaluator visibilityEvaluator, BytesRef bytesRef) throws IOException {
-    DocumentVisibility visibility = new DocumentVisibility(trim(bytesRef));
-    return visibilityEvaluator.evaluate(visibility);
+  /**
+   * @param key
+   *          a lookup key for the current authorizations, its term is replaced
+   *          on every call.
+   */
+  private static boolean isVisible(VisibleKey key, BytesRef bytesRef) throws IOException {
+    key._term = bytesRef;
+    Boolean visible = VISIBLE_CACHE.get(key);
+    if (visible != null) {
+      return visible;
+    }
+    DocumentVisibility visibility = getDocumentVisibility(bytesRef);
+    try {
+      visible = visibility.getCompiled().evaluate(key._mask);
+    } catch (VisibilityParseException e) {
+      throw new IOException(e);
+    }
+    VISIBLE_CACHE.put(key.copy(), visible);
+    return visible;
+  }
+
+  static boolean isVisible(long[] authorizationMask, BytesRef bytesRef) throws IOException {
+    return isVisible(new VisibleKey(authorizationMask), bytesRef);
   }
 
-  private byte[] trim(BytesRef bytesRef) {
+  /**
+   * Checks if the result is cached without evaluating or caching it.
+   */
+  static boolean isVisibleCached(long[] authorizationMask, BytesRef bytesRef) {
+    VisibleKey key = new VisibleKey(authorizationMask);
+    key._term = bytesRef;
+    return VISIBLE_CACHE.containsKey(key);
+  }
+
+  static int getVisibleCacheSize() {
+    return VISIBLE_CACHE.size();
+  }
+
+  static int getVisibilityCacheSize() {
+    return VISIBILITY_CACHE.size();
+  }
+
+  private static DocumentVisibility getDocumentVisibility(BytesRef bytesRef) {
+    DocumentVisibility visibility = VISIBILITY_CACHE.get(bytesRef);
+    if (visibility == null) {
+      visibility = new DocumentVisibility(trim(bytesRef));
+      VISIBILITY_CACHE.put(BytesRef.deepCopyOf(bytesRef), visibility);
+    }
+    return visibility;
+  }
+
+  private static byte[] trim(BytesRef bytesRef) {
     byte[] buf = new byte[bytesRef.length];
     System.arraycopy(bytesRef.bytes, bytesRef.offset, buf, 0, bytesRef.length);
     return buf;
   }
 
+  private static class VisibleKey {
+
+    private final long[] _mask;
+    private final int _maskHash;
+    private BytesRef _term;
+
+    VisibleKey(long[] mask) {
+      _mask = mask;
+      _maskHash = Arrays.hashCode(mask);
+    }
+
+    VisibleKey copy() {
+      VisibleKey key = new VisibleKey(_mask);
+      key._term = BytesRef.deepCopyOf(_term);
+      return key;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * _maskHash + _term.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof VisibleKey)) {
+        return false;
+      }
+      VisibleKey other = (VisibleKey) obj;
+      return _maskHash == other._maskHash && _term.equals(other._term) && Arrays.equals(_mask, other._mask);
+    }
+  }
+
+  /**
+   * Unlike {@link #getLogicalOr(List)} the OR is computed once into a single
+   * {@link OpenBitSet}, so {@link Bits#get(int)} is one word lookup no matter
+   * how many {@link DocIdSet}s were combined.
+   */
+  public static DocIdSet getUnion(List<DocIdSet> list, int maxDoc) throws IOException {
+    if (list.size() == 0) {
+      return DocIdSet.EMPTY_DOCIDSET;
+    }
+    if (list.size() == 1) {
+      DocIdSet docIdSet = list.get(0);
+      Bits bits = docIdSet.bits();
+      if (bits == null) {
+        throw new IOException("Bits are not allowed to be null for DocIdSet [" + docIdSet + "].");
+      }
+      return docIdSet;
+    }
+    return toOpenBitSet(list, maxDoc);
+  }
+
   public static DocIdSet getLogicalOr(DocIdSet... list) throws IOException {
     return getLogicalOr(Arrays.asList(list));
   }
@@ -178,56 +301,124 @@ public class DocumentVisibilityFilter extends Filter {
 
       @Override
       public DocIdSetIterator iterator() throws IOException {
-        final DocIdSetIterator[] docIdSetIteratorArray = new DocIdSetIterator[list.size()];
-        long c = 0;
-        int index = 0;
+        if (list.size() >= BITSET_ITERATOR_THRESHOLD) {
+          // With this many sub iterators it is cheaper to walk the union once
+          // than to keep a large heap ordered for every document.
+          return toOpenBitSet(list, len).iterator();
+        }
+        DocIdSetIteratorQueue queue = new DocIdSetIteratorQueue(list.size());
+        long cost = 0;
         for (DocIdSet docIdSet : list) {
           DocIdSetIterator iterator = docIdSet.iterator();
-          iterator.nextDoc();
-          docIdSetIteratorArray[index] = iterator;
-          c += iterator.cost();
-          index++;
+          if (iterator == null) {
+            continue;
+          }
+          cost += iterator.cost();
+          if (iterator.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            queue.add(iterator);
+          }
         }
-        final long cost = c;
-        return new DocIdSetIterator() {
+        return new DisjunctionDocIdSetIterator(queue, cost);
+      }
+    };
+  }
 
-          private int _docId = -1;
+  private static OpenBitSet toOpenBitSet(List<DocIdSet> list, int length) throws IOException {
+    OpenBitSet result = new OpenBitSet(length);
+    for (DocIdSet docIdSet : list) {
+      if (docIdSet instanceof OpenBitSet) {
+        result.union((OpenBitSet) docIdSet);
+      } else if (docIdSet instanceof LongBufferBitSet) {
+        ((LongBufferBitSet) docIdSet).or(result);
+      } else {
+        DocIdSetIterator iterator = docIdSet.iterator();
+        if (iterator == null) {
+          continue;
+        }
+        int doc;
+        while ((doc = iterator.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          result.fastSet(doc);
+        }
+      }
+    }
+    return result;
+  }
 
-          @Override
-          public int advance(int target) throws IOException {
-            callAdvanceOnAllThatAreBehind(target);
-            Arrays.sort(docIdSetIteratorArray, COMPARATOR);
-            DocIdSetIterator iterator = docIdSetIteratorArray[0];
-            return _docId = iterator.docID();
-          }
+  private static class DocIdSetIteratorQueue extends PriorityQueue<DocIdSetIterator> {
 
-          private void callAdvanceOnAllThatAreBehind(int target) throws IOException {
-            for (int i = 0; i < docIdSetIteratorArray.length; i++) {
-              DocIdSetIterator iterator = docIdSetIteratorArray[i];
-              if (iterator.docID() < target) {
-                iterator.advance(target);
-              }
-            }
-          }
+    DocIdSetIteratorQueue(int maxSize) {
+      super(maxSize);
+    }
 
-          @Override
-          public int nextDoc() throws IOException {
-            return advance(_docId + 1);
-          }
+    @Override
+    protected boolean lessThan(DocIdSetIterator a, DocIdSetIterator b) {
+      return a.docID() < b.docID();
+    }
+  }
 
-          @Override
-          public int docID() {
-            return _docId;
-          }
+  /**
+   * Merges the sub iterators with a heap ordered on the current docID of each
+   * iterator, so moving to the next document costs O(log k) instead of sorting
+   * all k iterators.
+   */
+  private static class DisjunctionDocIdSetIterator extends DocIdSetIterator {
 
-          @Override
-          public long cost() {
-            return cost;
-          }
+    private final DocIdSetIteratorQueue _queue;
+    private final long _cost;
+    private int _docId = -1;
 
-        };
+    DisjunctionDocIdSetIterator(DocIdSetIteratorQueue queue, long cost) {
+      _queue = queue;
+      _cost = cost;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      if (_docId == NO_MORE_DOCS) {
+        return _docId;
       }
-    };
+      while (_queue.size() > 0) {
+        DocIdSetIterator top = _queue.top();
+        if (top.docID() > _docId) {
+          return _docId = top.docID();
+        }
+        if (top.nextDoc() == NO_MORE_DOCS) {
+          _queue.pop();
+        } else {
+          _queue.updateTop();
+        }
+      }
+      return _docId = NO_MORE_DOCS;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      if (_docId == NO_MORE_DOCS) {
+        return _docId;
+      }
+      while (_queue.size() > 0) {
+        DocIdSetIterator top = _queue.top();
+        if (top.docID() >= target) {
+          return _docId = top.docID();
+        }
+        if (top.advance(target) == NO_MORE_DOCS) {
+          _queue.pop();
+        } else {
+          _queue.updateTop();
+        }
+      }
+      return _docId = NO_MORE_DOCS;
+    }
+
+    @Override
+    public int docID() {
+      return _docId;
+    }
+
+    @Override
+    public long cost() {
+      return _cost;
+    }
   }
 
 }
\ No newline at end of file
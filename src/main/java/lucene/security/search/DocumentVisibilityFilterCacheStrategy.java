@@ -18,6 +18,8 @@ package lucene.security.search;
 
 import java.io.IOException;
 
+import lucene.security.DocumentAuthorizations;
+
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
@@ -29,6 +31,32 @@ public abstract class DocumentVisibilityFilterCacheStrategy {
 
   public abstract Builder createBuilder(String fieldName, BytesRef term, AtomicReader reader) throws IOException;
 
+  /**
+   * Checks if the {@link DocIdSet} of the term is cached without counting the
+   * lookup as a hit or a miss, used by warmers to skip cached terms.
+   */
+  public boolean isCached(String fieldName, BytesRef term, AtomicReader reader) throws IOException {
+    return getDocIdSet(fieldName, term, reader) != null;
+  }
+
+  /**
+   * Gets the final visible {@link DocIdSet} for the whole authorization set on
+   * the given segment, or null if it has not been cached.
+   */
+  public DocIdSet getDocIdSet(String fieldName, DocumentAuthorizations authorizations, AtomicReader reader)
+      throws IOException {
+    return null;
+  }
+
+  /**
+   * Caches the final visible {@link DocIdSet} for the whole authorization set
+   * on the given segment and returns the {@link DocIdSet} that should be used.
+   */
+  public DocIdSet cacheDocIdSet(String fieldName, DocumentAuthorizations authorizations, AtomicReader reader,
+      DocIdSet docIdSet) throws IOException {
+    return docIdSet;
+  }
+
   public abstract static class Builder {
 
     public abstract void or(DocIdSetIterator it) throws IOException;
@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lucene.security.index.AccessControlFactory;
+import lucene.security.index.Futures;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter.IndexReaderWarmer;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Builds the cached term bitsets of the visibility fields for new segments
+ * before any user query reaches them. Set it on the
+ * {@link org.apache.lucene.index.IndexWriterConfig} with
+ * setMergedSegmentWarmer to warm merged segments, and use
+ * {@link #getSearcherFactory()} with a
+ * {@link org.apache.lucene.search.SearcherManager} to warm flushed segments on
+ * refresh. Terms that are already cached are skipped.
+ */
+public class DocumentVisibilityFilterCacheWarmer extends IndexReaderWarmer implements Closeable {
+
+  private static final Log LOG = LogFactory.getLog(DocumentVisibilityFilterCacheWarmer.class);
+
+  private static final int TERMS_PER_TASK = 64;
+
+  private final DocumentVisibilityFilterCacheStrategy _filterCacheStrategy;
+  private final Collection<String> _fieldNames;
+  private final ExecutorService _executor;
+  private final boolean _ownsExecutor;
+
+  public DocumentVisibilityFilterCacheWarmer(DocumentVisibilityFilterCacheStrategy filterCacheStrategy,
+      AccessControlFactory accessControlFactory, int threads) {
+    this(filterCacheStrategy, Arrays.asList(accessControlFactory.getReadFieldName(),
+        accessControlFactory.getDiscoverFieldName()), newExecutor(threads), true);
+  }
+
+  /**
+   * The given executor is not shutdown by {@link #close()}.
+   */
+  public DocumentVisibilityFilterCacheWarmer(DocumentVisibilityFilterCacheStrategy filterCacheStrategy,
+      Collection<String> fieldNames, ExecutorService executor) {
+    this(filterCacheStrategy, fieldNames, executor, false);
+  }
+
+  private DocumentVisibilityFilterCacheWarmer(DocumentVisibilityFilterCacheStrategy filterCacheStrategy,
+      Collection<String> fieldNames, ExecutorService executor, boolean ownsExecutor) {
+    _filterCacheStrategy = filterCacheStrategy;
+    _fieldNames = fieldNames;
+    _executor = executor;
+    _ownsExecutor = ownsExecutor;
+  }
+
+  private static ExecutorService newExecutor(int threads) {
+    final AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "visibility-cache-warmer-" + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @Override
+  public void warm(AtomicReader reader) throws IOException {
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    submit(reader, futures);
+    Futures.getAll(futures);
+  }
+
+  /**
+   * Warms every segment of the given reader.
+   */
+  public void warm(IndexReader reader) throws IOException {
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (AtomicReaderContext context : reader.leaves()) {
+      submit(context.reader(), futures);
+    }
+    Futures.getAll(futures);
+  }
+
+  /**
+   * Gets a {@link SearcherFactory} that warms the reader before creating the
+   * {@link IndexSearcher}.
+   */
+  public SearcherFactory getSearcherFactory() {
+    return new SearcherFactory() {
+      @Override
+      public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+        warm(reader);
+        return super.newSearcher(reader);
+      }
+    };
+  }
+
+  private void submit(final AtomicReader reader, List<Future<Void>> futures) throws IOException {
+    for (final String fieldName : _fieldNames) {
+      Terms terms = reader.terms(fieldName);
+      if (terms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = terms.iterator(null);
+      List<BytesRef> batch = new ArrayList<BytesRef>();
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+        if (!_filterCacheStrategy.isCached(fieldName, term, reader)) {
+          batch.add(BytesRef.deepCopyOf(term));
+          if (batch.size() == TERMS_PER_TASK) {
+            futures.add(_executor.submit(newTask(reader, fieldName, batch)));
+            batch = new ArrayList<BytesRef>();
+          }
+        }
+      }
+      if (!batch.isEmpty()) {
+        futures.add(_executor.submit(newTask(reader, fieldName, batch)));
+      }
+    }
+  }
+
+  private Callable<Void> newTask(final AtomicReader reader, final String fieldName, final List<BytesRef> batch) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        TermsEnum termsEnum = reader.terms(fieldName).iterator(null);
+        DocsEnum docsEnum = null;
+        for (BytesRef term : batch) {
+          if (!termsEnum.seekExact(term, true)) {
+            continue;
+          }
+          // Do not use live docs because the acl cache is version agnostic.
+          docsEnum = termsEnum.docs(null, docsEnum, DocsEnum.FLAG_NONE);
+          DocumentVisibilityFilter.buildCache(_filterCacheStrategy, fieldName, reader, docsEnum, term);
+        }
+        LOG.debug("Warmed [" + batch.size() + "] terms of field [" + fieldName + "] on [" + reader + "]");
+        return null;
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (_ownsExecutor) {
+      _executor.shutdownNow();
+    }
+  }
+
+}
@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * A bitset stored outside of the Java heap in a direct or memory mapped
+ * {@link ByteBuffer}. The word layout is the same as {@link OpenBitSet}.
+ * 
+ * NOTE: After {@link #release()} every access throws an
+ * {@link AlreadyClosedException}. The memory is reclaimed by the garbage
+ * collector once no reader holds the bitset, it is never freed explicitly
+ * because a reader still in flight would read freed memory.
+ */
+public class LongBufferBitSet extends DocIdSet implements Bits {
+
+  private final ByteBuffer _byteBuffer;
+  private final LongBuffer _words;
+  private final int _numWords;
+  private final int _length;
+  private volatile boolean _released;
+
+  public LongBufferBitSet(ByteBuffer byteBuffer, int length) {
+    _byteBuffer = byteBuffer;
+    _words = byteBuffer.order(ByteOrder.nativeOrder()).asLongBuffer();
+    _numWords = OpenBitSet.bits2words(length);
+    _length = length;
+    if (_words.capacity() < _numWords) {
+      throw new IllegalArgumentException("Buffer too small [" + _words.capacity() + "] for [" + length + "] bits.");
+    }
+  }
+
+  public static LongBufferBitSet allocateDirect(int length) {
+    return new LongBufferBitSet(ByteBuffer.allocateDirect(OpenBitSet.bits2words(length) * 8), length);
+  }
+
+  /**
+   * Allocates the bitset in a memory mapped file under the given directory. The
+   * file is removed right away, the mapping stays valid until garbage collected.
+   */
+  public static LongBufferBitSet allocateMapped(File dir, int length) throws IOException {
+    File file = File.createTempFile("visibility", ".bits", dir);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long size = OpenBitSet.bits2words(length) * 8L;
+      raf.setLength(size);
+      FileChannel channel = raf.getChannel();
+      return new LongBufferBitSet(channel.map(MapMode.READ_WRITE, 0, size), length);
+    } finally {
+      raf.close();
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  private void ensureNotReleased() {
+    if (_released) {
+      throw new AlreadyClosedException("this LongBufferBitSet was released");
+    }
+  }
+
+  public void set(int index) {
+    ensureNotReleased();
+    int word = index >> 6;
+    _words.put(word, _words.get(word) | (1L << index));
+  }
+
+  @Override
+  public boolean get(int index) {
+    ensureNotReleased();
+    return (_words.get(index >> 6) & (1L << index)) != 0;
+  }
+
+  @Override
+  public int length() {
+    return _length;
+  }
+
+  public void copyFrom(OpenBitSet bitSet) {
+    ensureNotReleased();
+    long[] bits = bitSet.getBits();
+    int numWords = Math.min(bitSet.getNumWords(), _numWords);
+    for (int i = 0; i < numWords; i++) {
+      _words.put(i, bits[i]);
+    }
+  }
+
+  /**
+   * ORs this bitset word by word into the given {@link OpenBitSet}.
+   */
+  public void or(OpenBitSet bitSet) {
+    ensureNotReleased();
+    bitSet.ensureCapacityWords(_numWords);
+    long[] bits = bitSet.getBits();
+    for (int i = 0; i < _numWords; i++) {
+      bits[i] |= _words.get(i);
+    }
+  }
+
+  /**
+   * ORs the bits in [startDoc, endDoc) word by word into the given
+   * {@link FixedBitSet}.
+   */
+  public void or(FixedBitSet bitSet, int startDoc, int endDoc) {
+    ensureNotReleased();
+    if (startDoc >= endDoc) {
+      return;
+    }
+    long[] bits = bitSet.getBits();
+    int startWord = startDoc >> 6;
+    int endWord = (endDoc - 1) >> 6;
+    int lastWord = Math.min(endWord, _numWords - 1);
+    for (int i = startWord; i <= lastWord; i++) {
+      long word = _words.get(i);
+      if (i == startWord) {
+        word &= -1L << startDoc;
+      }
+      if (i == endWord) {
+        word &= -1L >>> -endDoc;
+      }
+      bits[i] |= word;
+    }
+  }
+
+  public long sizeInBytes() {
+    return _byteBuffer.capacity();
+  }
+
+  public int nextSetBit(int index) {
+    ensureNotReleased();
+    int i = index >> 6;
+    if (i >= _numWords) {
+      return -1;
+    }
+    long word = _words.get(i) >>> index;
+    if (word != 0) {
+      return index + Long.numberOfTrailingZeros(word);
+    }
+    while (++i < _numWords) {
+      word = _words.get(i);
+      if (word != 0) {
+        return (i << 6) + Long.numberOfTrailingZeros(word);
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public Bits bits() throws IOException {
+    return this;
+  }
+
+  @Override
+  public boolean isCacheable() {
+    return true;
+  }
+
+  @Override
+  public DocIdSetIterator iterator() throws IOException {
+    ensureNotReleased();
+    return new DocIdSetIterator() {
+
+      private int _docId = -1;
+
+      @Override
+      public int nextDoc() throws IOException {
+        return advance(_docId + 1);
+      }
+
+      @Override
+      public int advance(int target) throws IOException {
+        if (_docId == NO_MORE_DOCS || target >= _length) {
+          return _docId = NO_MORE_DOCS;
+        }
+        int next = nextSetBit(target);
+        return _docId = (next < 0 || next >= _length) ? NO_MORE_DOCS : next;
+      }
+
+      @Override
+      public int docID() {
+        return _docId;
+      }
+
+      @Override
+      public long cost() {
+        return _length;
+      }
+    };
+  }
+
+  /**
+   * Marks the bitset as released, later access fails instead of reading a
+   * bitset whose segment is gone.
+   */
+  public void release() {
+    _released = true;
+  }
+
+  public boolean isReleased() {
+    return _released;
+  }
+
+  @Override
+  public String toString() {
+    return "LongBufferBitSet [_length=" + _length + ", _direct=" + _byteBuffer.isDirect() + ", _released="
+        + _released + "]";
+  }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.search;
+
+import java.io.File;
+import java.io.IOException;
+
+import lucene.security.DocumentAuthorizations;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Keeps the cached visibility bitsets off the Java heap in
+ * {@link LongBufferBitSet}s, either direct buffers or, when a cache directory
+ * is given, memory mapped files. The bitsets are released when the segment
+ * core closes, so readers reopened with new deletes keep using the bitsets of
+ * their shared core after the old reader closes and a reader used after its
+ * core closed gets an {@link org.apache.lucene.store.AlreadyClosedException}.
+ * The memory itself is reclaimed by the garbage collector, it is never freed
+ * while a reader could still read it.
+ */
+public class OffHeapDocumentVisibilityFilterCacheStrategy extends BitSetDocumentVisibilityFilterCacheStrategy {
+
+  private final File _cacheDir;
+
+  public OffHeapDocumentVisibilityFilterCacheStrategy(long maxBytes) {
+    this(maxBytes, null);
+  }
+
+  /**
+   * @param maxBytes
+   *          the off heap memory budget.
+   * @param cacheDir
+   *          directory for memory mapped bitsets, null to use direct buffers.
+   */
+  public OffHeapDocumentVisibilityFilterCacheStrategy(long maxBytes, File cacheDir) {
+    super(maxBytes);
+    _cacheDir = cacheDir;
+  }
+
+  @Override
+  protected Builder newBuilder(int maxDoc) {
+    final LongBufferBitSet bitSet;
+    try {
+      bitSet = allocate(maxDoc);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return new Builder() {
+      @Override
+      public void or(DocIdSetIterator it) throws IOException {
+        int doc;
+        while ((doc = it.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+          bitSet.set(doc);
+        }
+      }
+
+      @Override
+      public DocIdSet getDocIdSet() throws IOException {
+        return bitSet;
+      }
+    };
+  }
+
+  @Override
+  public DocIdSet cacheDocIdSet(String fieldName, DocumentAuthorizations authorizations, AtomicReader reader,
+      DocIdSet docIdSet) {
+    if (!(docIdSet instanceof OpenBitSet)) {
+      return super.cacheDocIdSet(fieldName, authorizations, reader, docIdSet);
+    }
+    LongBufferBitSet bitSet;
+    try {
+      bitSet = allocate(reader.maxDoc());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    bitSet.copyFrom((OpenBitSet) docIdSet);
+    DocIdSet result = super.cacheDocIdSet(fieldName, authorizations, reader, bitSet);
+    if (result != bitSet) {
+      bitSet.release();
+    }
+    return result;
+  }
+
+  private LongBufferBitSet allocate(int maxDoc) throws IOException {
+    if (_cacheDir == null) {
+      return LongBufferBitSet.allocateDirect(maxDoc);
+    }
+    return LongBufferBitSet.allocateMapped(_cacheDir, maxDoc);
+  }
+
+  @Override
+  protected long sizeInBytes(DocIdSet docIdSet) {
+    if (docIdSet instanceof LongBufferBitSet) {
+      return ((LongBufferBitSet) docIdSet).sizeInBytes();
+    }
+    return super.sizeInBytes(docIdSet);
+  }
+
+  @Override
+  protected void release(DocIdSet docIdSet) {
+    if (docIdSet instanceof LongBufferBitSet) {
+      ((LongBufferBitSet) docIdSet).release();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "OffHeapDocumentVisibilityFilterCacheStrategy [_cacheDir=" + _cacheDir + ", " + super.toString() + "]";
+  }
+
+}
@@ -0,0 +1,225 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.search;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Writes the bitset of every (field, term) of a segment to a sidecar file under
+ * the cache directory and memory maps it back, so the bitsets survive a
+ * restart. Segments are immutable so a file never has to be rewritten, the
+ * directory of a segment is named after the segment name, doc count and
+ * creation timestamp. The mapped bitsets are released once the segment core
+ * closes, not when the first of the readers sharing it closes, and unmapped by
+ * the garbage collector.
+ * 
+ * NOTE: Use one cache directory per index. Readers that are not a
+ * {@link SegmentReader} are cached in memory only.
+ */
+public class PersistentDocumentVisibilityFilterCacheStrategy extends OffHeapDocumentVisibilityFilterCacheStrategy {
+
+  private static final Log LOG = LogFactory.getLog(PersistentDocumentVisibilityFilterCacheStrategy.class);
+
+  private static final String SUFFIX = ".bits";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private final File _sidecarDir;
+
+  public PersistentDocumentVisibilityFilterCacheStrategy(long maxBytes, File cacheDir) {
+    super(maxBytes);
+    _sidecarDir = cacheDir;
+    _sidecarDir.mkdirs();
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(String fieldName, BytesRef term, AtomicReader reader) throws IOException {
+    DocIdSet docIdSet = super.getDocIdSet(fieldName, term, reader);
+    if (docIdSet != null) {
+      return docIdSet;
+    }
+    File file = getFile(fieldName, term, reader);
+    if (file == null || !file.exists()) {
+      return null;
+    }
+    LongBufferBitSet bitSet = map(file, reader.maxDoc());
+    if (bitSet == null) {
+      return null;
+    }
+    LOG.debug("Loaded bitset from [" + file + "]");
+    return cacheDocIdSet(fieldName, term, reader, bitSet);
+  }
+
+  /**
+   * A term with a sidecar file counts as cached, it is mapped on first use.
+   */
+  @Override
+  public boolean isCached(String fieldName, BytesRef term, AtomicReader reader) throws IOException {
+    if (super.isCached(fieldName, term, reader)) {
+      return true;
+    }
+    File file = getFile(fieldName, term, reader);
+    return file != null && file.exists();
+  }
+
+  @Override
+  public Builder createBuilder(final String fieldName, final BytesRef term, final AtomicReader reader)
+      throws IOException {
+    final File file = getFile(fieldName, term, reader);
+    if (file == null) {
+      return super.createBuilder(fieldName, term, reader);
+    }
+    final BytesRef termCopy = BytesRef.deepCopyOf(term);
+    final OpenBitSet bitSet = new OpenBitSet(reader.maxDoc());
+    return new Builder() {
+      @Override
+      public void or(DocIdSetIterator it) throws IOException {
+        int doc;
+        while ((doc = it.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+          bitSet.set(doc);
+        }
+      }
+
+      @Override
+      public DocIdSet getDocIdSet() throws IOException {
+        write(file, bitSet);
+        LongBufferBitSet mapped = map(file, reader.maxDoc());
+        if (mapped == null) {
+          throw new IOException("Could not map file [" + file + "] that was just written.");
+        }
+        return cacheDocIdSet(fieldName, termCopy, reader, mapped);
+      }
+    };
+  }
+
+  /**
+   * Deletes the sidecar directories of segments that are not part of the given
+   * reader, call after commits or merges to reclaim disk space.
+   */
+  public void removeUnusedSegments(IndexReader reader) {
+    Set<String> used = new HashSet<String>();
+    for (AtomicReaderContext context : reader.leaves()) {
+      String segmentKey = getSegmentKey(context.reader());
+      if (segmentKey != null) {
+        used.add(segmentKey);
+      }
+    }
+    File[] segmentDirs = _sidecarDir.listFiles();
+    if (segmentDirs == null) {
+      return;
+    }
+    for (File segmentDir : segmentDirs) {
+      if (segmentDir.isDirectory() && !used.contains(segmentDir.getName())) {
+        LOG.debug("Removing unused segment cache [" + segmentDir + "]");
+        File[] files = segmentDir.listFiles();
+        if (files != null) {
+          for (File file : files) {
+            file.delete();
+          }
+        }
+        segmentDir.delete();
+      }
+    }
+  }
+
+  private File getFile(String fieldName, BytesRef term, AtomicReader reader) {
+    String segmentKey = getSegmentKey(reader);
+    if (segmentKey == null) {
+      return null;
+    }
+    byte[] termBytes = new byte[term.length];
+    System.arraycopy(term.bytes, term.offset, termBytes, 0, term.length);
+    return new File(new File(_sidecarDir, segmentKey), fieldName + "_" + DigestUtils.md5Hex(termBytes) + SUFFIX);
+  }
+
+  private String getSegmentKey(AtomicReader reader) {
+    if (!(reader instanceof SegmentReader)) {
+      return null;
+    }
+    SegmentReader segmentReader = (SegmentReader) reader;
+    Map<String, String> diagnostics = segmentReader.getSegmentInfo().info.getDiagnostics();
+    String timestamp = diagnostics == null ? null : diagnostics.get("timestamp");
+    return segmentReader.getSegmentName() + "_" + reader.maxDoc() + (timestamp == null ? "" : "_" + timestamp);
+  }
+
+  private void write(File file, OpenBitSet bitSet) throws IOException {
+    file.getParentFile().mkdirs();
+    int numWords = OpenBitSet.bits2words(bitSet.length());
+    ByteBuffer buffer = ByteBuffer.allocate(numWords * 8).order(ByteOrder.nativeOrder());
+    buffer.asLongBuffer().put(bitSet.getBits(), 0, numWords);
+    File tmp = File.createTempFile(file.getName(), TMP_SUFFIX, file.getParentFile());
+    FileOutputStream outputStream = new FileOutputStream(tmp);
+    try {
+      FileChannel channel = outputStream.getChannel();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    } finally {
+      outputStream.close();
+    }
+    if (!tmp.renameTo(file)) {
+      // Another thread may have written the same term.
+      tmp.delete();
+      if (!file.exists()) {
+        throw new IOException("Could not rename [" + tmp + "] to [" + file + "]");
+      }
+    }
+  }
+
+  private LongBufferBitSet map(File file, int maxDoc) throws IOException {
+    long size = OpenBitSet.bits2words(maxDoc) * 8L;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() != size) {
+        LOG.warn("Ignoring file [" + file + "] with length [" + raf.length() + "] expected [" + size + "]");
+        return null;
+      }
+      return new LongBufferBitSet(raf.getChannel().map(MapMode.READ_ONLY, 0, size), maxDoc);
+    } finally {
+      raf.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "PersistentDocumentVisibilityFilterCacheStrategy [_sidecarDir=" + _sidecarDir + ", " + super.toString() + "]";
+  }
+
+}
@@ -18,9 +18,7 @@ package lucene.security.search;
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
@@ -28,6 +26,7 @@ import lucene.security.index.AccessControlFactory;
 import lucene.security.index.AccessControlReader;
 import lucene.security.index.SecureAtomicReader;
 import lucene.security.index.SecureDirectoryReader;
+import lucene.security.index.SecureReaderPool;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.AtomicReader;
@@ -36,22 +35,30 @@ import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexReaderContext;
 import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.CollectionTerminatedException;
 import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
 
 public class SecureIndexSearcher extends IndexSearcher {
 
   private final IndexReader _secureIndexReader;
-  private final Map<Object, AtomicReaderContext> _leaveMap;
+  // Indexed by the ord of the original leaf less _leafOrdBase.
+  private final AtomicReaderContext[] _secureLeaves;
+  private final int _leafOrdBase;
   private final AccessControlFactory _accessControlFactory;
   private final Collection<String> _readAuthorizations;
   private final Collection<String> _discoverAuthorizations;
   private final Set<String> _discoverableFields;
-  private AccessControlReader _accessControlReader;
+  private final AccessControlReader _accessControlReader;
+  private final ExecutorService _executor;
 
   public SecureIndexSearcher(IndexReader r, AccessControlFactory accessControlFactory,
       Collection<String> readAuthorizations, Collection<String> discoverAuthorizations, Set<String> discoverableFields)
@@ -74,23 +81,45 @@ public class SecureIndexSearcher extends IndexSearcher {
   public SecureIndexSearcher(IndexReaderContext context, ExecutorService executor,
       AccessControlFactory accessControlFactory, Collection<String> readAuthorizations,
       Collection<String> discoverAuthorizations, Set<String> discoverableFields) throws IOException {
+    this(context, executor, accessControlFactory, null, readAuthorizations, discoverAuthorizations, discoverableFields);
+  }
+
+  /**
+   * Looks up the secure readers of the request from the pool instead of
+   * wrapping the reader, the pool owns them.
+   */
+  public SecureIndexSearcher(IndexReader r, ExecutorService executor, SecureReaderPool secureReaderPool,
+      Collection<String> readAuthorizations, Collection<String> discoverAuthorizations, Set<String> discoverableFields)
+      throws IOException {
+    this(r.getContext(), executor, secureReaderPool.getAccessControlFactory(), secureReaderPool, readAuthorizations,
+        discoverAuthorizations, discoverableFields);
+  }
+
+  private SecureIndexSearcher(IndexReaderContext context, ExecutorService executor,
+      AccessControlFactory accessControlFactory, SecureReaderPool secureReaderPool,
+      Collection<String> readAuthorizations, Collection<String> discoverAuthorizations, Set<String> discoverableFields)
+      throws IOException {
     super(context, executor);
     _accessControlFactory = accessControlFactory;
     _readAuthorizations = readAuthorizations;
     _discoverAuthorizations = discoverAuthorizations;
     _discoverableFields = discoverableFields;
-    _accessControlReader = _accessControlFactory.getReader(readAuthorizations, discoverAuthorizations,
-        discoverableFields);
-    _secureIndexReader = getSecureIndexReader(context);
-    List<AtomicReaderContext> leaves = _secureIndexReader.leaves();
-    _leaveMap = new HashMap<Object, AtomicReaderContext>();
-    for (AtomicReaderContext atomicReaderContext : leaves) {
-      AtomicReader atomicReader = atomicReaderContext.reader();
-      SecureAtomicReader secureAtomicReader = (SecureAtomicReader) atomicReader;
-      AtomicReader originalReader = secureAtomicReader.getOriginalReader();
-      Object coreCacheKey = originalReader.getCoreCacheKey();
-      _leaveMap.put(coreCacheKey, atomicReaderContext);
+    _executor = executor;
+    if (secureReaderPool == null) {
+      _accessControlReader = _accessControlFactory.getReader(readAuthorizations, discoverAuthorizations,
+          discoverableFields);
+      _secureIndexReader = getSecureIndexReader(context);
+    } else {
+      _accessControlReader = secureReaderPool.getAccessControlReader(readAuthorizations, discoverAuthorizations,
+          discoverableFields);
+      _secureIndexReader = secureReaderPool.getSecureIndexReader(context.reader(), executor, readAuthorizations,
+          discoverAuthorizations, discoverableFields);
     }
+    // Wrapping keeps the order of the leaves.
+    List<AtomicReaderContext> secureLeaves = _secureIndexReader.leaves();
+    _secureLeaves = secureLeaves.toArray(new AtomicReaderContext[secureLeaves.size()]);
+    // Leaf ords are relative to the top reader, which may not be this context.
+    _leafOrdBase = leafContexts.isEmpty() ? 0 : leafContexts.get(0).ord;
   }
 
   protected AtomicReader getSecureAtomicReader(AtomicReader atomicReader) throws IOException {
@@ -101,8 +130,9 @@ public class SecureIndexSearcher extends IndexSearcher {
   protected IndexReader getSecureIndexReader(IndexReaderContext context) throws IOException {
     IndexReader indexReader = context.reader();
     if (indexReader instanceof DirectoryReader) {
+      // With an executor the segments are secured in parallel, not only scored.
       return SecureDirectoryReader.create(_accessControlFactory, (DirectoryReader) indexReader, _readAuthorizations,
-          _discoverAuthorizations, _discoverableFields);
+          _discoverAuthorizations, _discoverableFields, _executor);
     } else if (indexReader instanceof AtomicReader) {
       return SecureAtomicReader.create(_accessControlFactory, (AtomicReader) indexReader, _readAuthorizations,
           _discoverAuthorizations, _discoverableFields);
@@ -116,34 +146,47 @@ public class SecureIndexSearcher extends IndexSearcher {
   }
 
   protected Filter getSecureFilter() throws IOException {
-    return _accessControlReader.getQueryFilter();
-  }
-
-  protected Collector getSecureCollector(final Collector collector) {
-    return new Collector() {
-
-      @Override
-      public void setScorer(Scorer scorer) throws IOException {
-        collector.setScorer(scorer);
-      }
-
+    final Filter queryFilter = _accessControlReader.getQueryFilter();
+    return new Filter() {
       @Override
-      public void setNextReader(AtomicReaderContext context) throws IOException {
-        Object key = context.reader().getCoreCacheKey();
-        AtomicReaderContext atomicReaderContext = _leaveMap.get(key);
-        collector.setNextReader(atomicReaderContext);
+      public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        SecureAtomicReader secureAtomicReader = getSecureLeafReader(context);
+        if (secureAtomicReader == null) {
+          return queryFilter.getDocIdSet(context, acceptDocs);
+        }
+        // The secure live docs already hold the query access and the deletes of
+        // the leaf.
+        FixedBitSet visibleDocs = secureAtomicReader.getVisibleDocs();
+        if (acceptDocs == null || acceptDocs == context.reader().getLiveDocs() || acceptDocs == visibleDocs) {
+          return visibleDocs;
+        }
+        return BitsFilteredDocIdSet.wrap(visibleDocs, acceptDocs);
       }
+    };
+  }
 
-      @Override
-      public void collect(int doc) throws IOException {
-        collector.collect(doc);
-      }
+  /**
+   * Gets the secure leaf of a leaf of this searcher, null for leaves of other
+   * readers.
+   */
+  private SecureAtomicReader getSecureLeafReader(AtomicReaderContext context) {
+    AtomicReaderContext secureContext = getSecureLeaf(context);
+    if (secureContext == null) {
+      return null;
+    }
+    return (SecureAtomicReader) secureContext.reader();
+  }
 
-      @Override
-      public boolean acceptsDocsOutOfOrder() {
-        return collector.acceptsDocsOutOfOrder();
-      }
-    };
+  private AtomicReaderContext getSecureLeaf(AtomicReaderContext context) {
+    int index = context.ord - _leafOrdBase;
+    if (index < 0 || index >= _secureLeaves.length) {
+      return null;
+    }
+    AtomicReaderContext secureContext = _secureLeaves[index];
+    if (((SecureAtomicReader) secureContext.reader()).getOriginalReader() != context.reader()) {
+      return null;
+    }
+    return secureContext;
   }
 
   @Override
@@ -151,9 +194,31 @@ public class SecureIndexSearcher extends IndexSearcher {
     return super.createNormalizedWeight(wrapFilter(query, getSecureFilter()));
   }
 
+  /**
+   * Same as {@link IndexSearcher} except the collector is given the secure leaf
+   * matching each original leaf.
+   */
   @Override
   protected void search(List<AtomicReaderContext> leaves, Weight weight, Collector collector) throws IOException {
-    super.search(leaves, weight, getSecureCollector(collector));
+    for (AtomicReaderContext context : leaves) {
+      AtomicReaderContext secureContext = getSecureLeaf(context);
+      if (secureContext == null) {
+        throw new IOException("Leaf [" + context.reader() + "] is not a leaf of this searcher.");
+      }
+      try {
+        collector.setNextReader(secureContext);
+      } catch (CollectionTerminatedException e) {
+        continue;
+      }
+      Scorer scorer = weight.scorer(context, !collector.acceptsDocsOutOfOrder(), true, context.reader().getLiveDocs());
+      if (scorer != null) {
+        try {
+          scorer.score(collector);
+        } catch (CollectionTerminatedException e) {
+          // Collection was terminated early for this leaf.
+        }
+      }
+    }
   }
 
   public Document doc(int docID) throws IOException {
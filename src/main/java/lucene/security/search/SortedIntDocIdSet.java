@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+
+/**
+ * A {@link DocIdSet} backed by a sorted array of docIDs. Random access through
+ * {@link #bits()} is a binary search, so it should only be used for sparse
+ * sets where it is much smaller than a bitset.
+ */
+public class SortedIntDocIdSet extends DocIdSet implements Bits {
+
+  private final int[] _docs;
+  private final int _size;
+  private final int _length;
+
+  /**
+   * @param docs
+   *          sorted and unique docIDs, only the first size entries are used.
+   * @param size
+   *          number of docIDs.
+   * @param length
+   *          the maxDoc of the segment.
+   */
+  public SortedIntDocIdSet(int[] docs, int size, int length) {
+    _docs = docs;
+    _size = size;
+    _length = length;
+  }
+
+  @Override
+  public boolean get(int index) {
+    return Arrays.binarySearch(_docs, 0, _size, index) >= 0;
+  }
+
+  @Override
+  public int length() {
+    return _length;
+  }
+
+  @Override
+  public Bits bits() throws IOException {
+    return this;
+  }
+
+  @Override
+  public boolean isCacheable() {
+    return true;
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  public long sizeInBytes() {
+    return _docs.length * 4L;
+  }
+
+  @Override
+  public DocIdSetIterator iterator() throws IOException {
+    return new DocIdSetIterator() {
+
+      private int _index = -1;
+      private int _docId = -1;
+
+      @Override
+      public int nextDoc() throws IOException {
+        if (++_index >= _size) {
+          return _docId = NO_MORE_DOCS;
+        }
+        return _docId = _docs[_index];
+      }
+
+      @Override
+      public int advance(int target) throws IOException {
+        // Gallop forward from the current position then binary search the
+        // last step, cheap for both short and long skips.
+        int low = _index + 1;
+        int step = 1;
+        int high = low;
+        while (high < _size && _docs[high] < target) {
+          low = high + 1;
+          high += step;
+          step <<= 1;
+        }
+        if (high >= _size) {
+          high = _size - 1;
+        }
+        if (low > high) {
+          _index = _size;
+          return _docId = NO_MORE_DOCS;
+        }
+        int index = Arrays.binarySearch(_docs, low, high + 1, target);
+        if (index < 0) {
+          index = -index - 1;
+        }
+        if (index >= _size) {
+          _index = _size;
+          return _docId = NO_MORE_DOCS;
+        }
+        _index = index;
+        return _docId = _docs[index];
+      }
+
+      @Override
+      public int docID() {
+        return _docId;
+      }
+
+      @Override
+      public long cost() {
+        return _size;
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "SortedIntDocIdSet [_size=" + _size + ", _length=" + _length + "]";
+  }
+
+}
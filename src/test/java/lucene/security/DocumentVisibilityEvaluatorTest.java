@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DocumentVisibilityEvaluatorTest {
+
+  @Test
+  public void testEvaluate() throws IOException {
+    DocumentVisibilityEvaluator evaluator = new DocumentVisibilityEvaluator(new DocumentAuthorizations("a", "b",
+        "c\"d"));
+    assertTrue(evaluator.evaluate(new DocumentVisibility("")));
+    assertTrue(evaluator.evaluate(new DocumentVisibility("a")));
+    assertTrue(evaluator.evaluate(new DocumentVisibility("a&b")));
+    assertTrue(evaluator.evaluate(new DocumentVisibility("x|(a&b)")));
+    assertTrue(evaluator.evaluate(new DocumentVisibility("(x|a)&(b|y)&(a|(b&x))")));
+    assertTrue(evaluator.evaluate(new DocumentVisibility("\"c\\\"d\"&a")));
+    assertFalse(evaluator.evaluate(new DocumentVisibility("x")));
+    assertFalse(evaluator.evaluate(new DocumentVisibility("a&x")));
+    assertFalse(evaluator.evaluate(new DocumentVisibility("(a&x)|(b&y)")));
+  }
+
+  @Test
+  public void testEvaluateManyAuthorizations() throws IOException {
+    List<String> auths = new ArrayList<String>();
+    for (int i = 0; i < 300; i++) {
+      auths.add("auth" + i);
+    }
+    DocumentVisibilityEvaluator evaluator = new DocumentVisibilityEvaluator(new DocumentAuthorizations(auths));
+    assertTrue(evaluator.evaluate(new DocumentVisibility("auth0&auth150&auth299")));
+    assertTrue(evaluator.evaluate(new DocumentVisibility("missing|(auth10&(auth200|other))")));
+    assertFalse(evaluator.evaluate(new DocumentVisibility("auth0&auth299&auth300")));
+    assertFalse(evaluator.evaluate(new DocumentVisibility("auth300|auth301")));
+  }
+
+}
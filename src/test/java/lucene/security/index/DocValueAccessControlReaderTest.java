@@ -0,0 +1,181 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.index;
+
+import static lucene.security.index.DocValueAccessControlFactory.DocValueAccessControlReader.ALLOW;
+import static lucene.security.index.DocValueAccessControlFactory.DocValueAccessControlReader.DENY;
+import static lucene.security.index.DocValueAccessControlFactory.DocValueAccessControlReader.UNKNOWN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import lucene.security.index.DocValueAccessControlFactory.DocValueAccessControlReader;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+public class DocValueAccessControlReaderTest {
+
+  private final AccessControlFactory _accessControlFactory = new DocValueAccessControlFactory();
+
+  @Test
+  public void testManyDistinctLabels() throws IOException {
+    int labels = 1500;
+    List<String> reads = new ArrayList<String>();
+    List<String> authorizations = new ArrayList<String>();
+    for (int i = 0; i < labels; i++) {
+      reads.add("l" + i);
+      if (i % 3 == 0) {
+        authorizations.add("l" + i);
+      }
+    }
+    DirectoryReader reader = createReader(reads.toArray(new String[reads.size()]));
+    AtomicReader segment = reader.leaves().get(0).reader();
+    DocValueAccessControlReader accessControlReader = clone(getReader(authorizations), segment);
+
+    FixedBitSet bits = new FixedBitSet(labels);
+    accessControlReader.hasAccess(ReadType.DOCUMENT_FETCH_READ, 0, labels, bits);
+    for (int doc = 0; doc < labels; doc++) {
+      assertEquals(doc % 3 == 0, bits.get(doc));
+      assertEquals(doc % 3 == 0, accessControlReader.hasAccess(ReadType.DOCUMENT_FETCH_READ, doc));
+    }
+    SortedDocValues values = segment.getSortedDocValues(DocValueAccessControlFactory.READ_FIELD);
+    assertEquals(labels, values.getValueCount());
+    for (int doc = 0; doc < labels; doc++) {
+      byte expected = doc % 3 == 0 ? ALLOW : DENY;
+      assertEquals(expected, accessControlReader.getReadOrdState(values.getOrd(doc)));
+    }
+    reader.close();
+  }
+
+  @Test
+  public void testClonesOnSegmentsDoNotShareOrdState() throws IOException {
+    // One value per segment so both segments use ord 0 for a different label.
+    DirectoryReader reader = createReader(new String[] { "a" }, new String[] { "b" });
+    assertEquals(2, reader.leaves().size());
+    DocValueAccessControlReader base = getReader(Arrays.asList("a"));
+    DocValueAccessControlReader clone1 = clone(base, reader.leaves().get(0).reader());
+    DocValueAccessControlReader clone2 = clone(base, reader.leaves().get(1).reader());
+
+    assertTrue(clone1.hasAccess(ReadType.DOCUMENT_FETCH_READ, 0));
+    assertEquals(ALLOW, clone1.getReadOrdState(0));
+    assertEquals(UNKNOWN, clone2.getReadOrdState(0));
+
+    assertFalse(clone2.hasAccess(ReadType.DOCUMENT_FETCH_READ, 0));
+    assertEquals(DENY, clone2.getReadOrdState(0));
+    assertEquals(ALLOW, clone1.getReadOrdState(0));
+
+    // A second clone of the same segment starts over.
+    DocValueAccessControlReader clone3 = clone(base, reader.leaves().get(0).reader());
+    assertEquals(UNKNOWN, clone3.getReadOrdState(0));
+    reader.close();
+  }
+
+  @Test
+  public void testOrdStateTransitions() throws IOException {
+    // The last document has no read value.
+    DirectoryReader reader = createReader(new String[] { "a", "b", null });
+    AtomicReader segment = reader.leaves().get(0).reader();
+    DocValueAccessControlReader accessControlReader = clone(getReader(Arrays.asList("a")), segment);
+    SortedDocValues values = segment.getSortedDocValues(DocValueAccessControlFactory.READ_FIELD);
+    int allowOrd = values.getOrd(0);
+    int denyOrd = values.getOrd(1);
+    int emptyOrd = values.getOrd(2);
+    BytesRef ref = new BytesRef();
+    values.lookupOrd(emptyOrd, ref);
+    assertEquals(0, ref.length);
+    for (int ord = 0; ord < values.getValueCount(); ord++) {
+      assertEquals(UNKNOWN, accessControlReader.getReadOrdState(ord));
+    }
+
+    assertTrue(accessControlReader.hasAccess(ReadType.DOCUMENT_FETCH_READ, 0));
+    assertEquals(ALLOW, accessControlReader.getReadOrdState(allowOrd));
+    assertEquals(UNKNOWN, accessControlReader.getReadOrdState(denyOrd));
+    assertEquals(UNKNOWN, accessControlReader.getReadOrdState(emptyOrd));
+
+    assertFalse(accessControlReader.hasAccess(ReadType.DOCUMENT_FETCH_READ, 1));
+    assertEquals(DENY, accessControlReader.getReadOrdState(denyOrd));
+
+    // An empty visibility would evaluate to visible, it has to be denied.
+    assertFalse(accessControlReader.hasAccess(ReadType.DOCUMENT_FETCH_READ, 2));
+    assertEquals(DENY, accessControlReader.getReadOrdState(emptyOrd));
+
+    // Known states are reused and keep giving the same answers.
+    FixedBitSet bits = new FixedBitSet(3);
+    accessControlReader.hasAccess(ReadType.DOCUMENT_FETCH_READ, 0, 3, bits);
+    assertEquals(1, bits.cardinality());
+    assertTrue(bits.get(0));
+    assertEquals(ALLOW, accessControlReader.getReadOrdState(allowOrd));
+    assertEquals(DENY, accessControlReader.getReadOrdState(denyOrd));
+    assertEquals(DENY, accessControlReader.getReadOrdState(emptyOrd));
+    reader.close();
+  }
+
+  private DocValueAccessControlReader getReader(List<String> readAuthorizations) {
+    return (DocValueAccessControlReader) _accessControlFactory.getReader(readAuthorizations,
+        Collections.<String> emptyList(), new HashSet<String>());
+  }
+
+  private DocValueAccessControlReader clone(DocValueAccessControlReader base, AtomicReader segment)
+      throws IOException {
+    return (DocValueAccessControlReader) base.clone(segment);
+  }
+
+  /**
+   * Writes each array as its own segment, a null entry is a document without a
+   * read visibility.
+   */
+  private DirectoryReader createReader(String[]... segments) throws IOException {
+    IndexWriterConfig conf = new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer());
+    conf.setMergePolicy(NoMergePolicy.COMPOUND_FILES);
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, conf);
+    AccessControlWriter accessControlWriter = _accessControlFactory.getWriter();
+    for (String[] reads : segments) {
+      for (String read : reads) {
+        Iterable<IndexableField> document = new Document();
+        if (read != null) {
+          document = accessControlWriter.addReadVisiblity(read, document);
+        }
+        writer.addDocument(document);
+      }
+      writer.commit();
+    }
+    writer.close();
+    return DirectoryReader.open(dir);
+  }
+}
@@ -16,6 +16,15 @@
  */
 package lucene.security.index;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import lucene.security.index.FilterAccessControlFactory.FilterAccessControlReader;
+import lucene.security.search.OffHeapDocumentVisibilityFilterCacheStrategy;
+
+import org.junit.Test;
+
 public class FilterSecureAtomicReaderTest extends SecureAtomicReaderTestBase {
 
   private AccessControlFactory _accessControlFactory = new FilterAccessControlFactory();
@@ -25,4 +34,10 @@ public class FilterSecureAtomicReaderTest extends SecureAtomicReaderTestBase {
     return _accessControlFactory;
   }
 
+  @Test
+  public void testBulkAccessRangesOffHeap() throws IOException {
+    checkBulkAccessRanges(new FilterAccessControlReader(Arrays.asList("r1"), Arrays.asList("d1"),
+        new HashSet<String>(), new OffHeapDocumentVisibilityFilterCacheStrategy(1024 * 1024)));
+  }
+
 }
@@ -18,8 +18,11 @@ package lucene.security.index;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.Arrays;
@@ -31,7 +34,9 @@ import java.util.Set;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.SortedSetDocValuesField;
@@ -48,23 +53,33 @@ import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.Version;
 import org.junit.Test;
 
 public abstract class SecureAtomicReaderTestBase {
 
+  private static final FieldType TERM_VECTOR_TYPE = new FieldType(StringField.TYPE_STORED);
+
+  static {
+    TERM_VECTOR_TYPE.setStoreTermVectors(true);
+    TERM_VECTOR_TYPE.freeze();
+  }
+
   public abstract AccessControlFactory getAccessControlFactory();
 
   @Test
@@ -76,6 +91,7 @@ public abstract class SecureAtomicReaderTestBase {
     assertTrue(liveDocs.get(1));
     assertTrue(liveDocs.get(2));
     assertFalse(liveDocs.get(3));
+    assertSame(liveDocs, secureReader.getLiveDocs());
     secureReader.close();
   }
 
@@ -244,6 +260,93 @@ public abstract class SecureAtomicReaderTestBase {
     secureReader.close();
   }
 
+  @Test
+  public void testDocsEnum() throws IOException {
+    SecureAtomicReader secureReader = getSecureReader();
+    TermsEnum termsEnum = secureReader.fields().terms("test").iterator(null);
+    assertTrue(termsEnum.seekExact(new BytesRef("test"), false));
+    DocsEnum docsEnum = termsEnum.docs(secureReader.getLiveDocs(), null);
+    assertEquals(0, docsEnum.nextDoc());
+    assertEquals(2, docsEnum.advance(2));
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, docsEnum.nextDoc());
+    docsEnum = termsEnum.docs(null, docsEnum);
+    assertEquals(0, docsEnum.nextDoc());
+    assertEquals(1, docsEnum.nextDoc());
+    assertEquals(2, docsEnum.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, docsEnum.advance(3));
+    assertSame(docsEnum, termsEnum.docs(null, docsEnum));
+    Terms terms = secureReader.fields().terms("info");
+    assertSame(termsEnum, terms.iterator(termsEnum));
+    assertEquals("info", termsEnum.next().utf8ToString());
+    secureReader.close();
+  }
+
+  @Test
+  public void testHideInvisibleTerms() throws IOException {
+    AccessControlReader accessControlReader = getAccessControlFactory().getReader(Arrays.asList("r1"),
+        Arrays.asList("d1"), new HashSet<String>());
+    SecureAtomicReader secureReader = new SecureAtomicReader(createReader(), accessControlReader, true);
+    Fields fields = secureReader.fields();
+    assertNull(fields.terms("shouldnotsee").iterator(null).next());
+    TermsEnum termsEnum = fields.terms("test").iterator(null);
+    assertEquals("test", termsEnum.next().utf8ToString());
+    assertEquals(3, termsEnum.docFreq());
+    assertTrue(termsEnum.seekExact(new BytesRef("test"), false));
+    assertEquals(3, termsEnum.totalTermFreq());
+    assertEquals(3, termsEnum.docFreq());
+    // Ords would count the hidden terms.
+    assertEquals(-1, termsEnum.ord());
+    try {
+      termsEnum.seekExact(0L);
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // Same reason.
+    }
+    assertFalse(fields.terms("shouldnotsee").iterator(null).seekExact(new BytesRef("shouldnotsee"), false));
+    assertEquals(TermsEnum.SeekStatus.END,
+        fields.terms("shouldnotsee").iterator(null).seekCeil(new BytesRef("a"), false));
+    secureReader.close();
+  }
+
+  @Test
+  public void testHiddenTermStatsSharedAcrossEnums() throws IOException {
+    AccessControlReader accessControlReader = getAccessControlFactory().getReader(Arrays.asList("r1"),
+        Arrays.asList("d1"), new HashSet<String>());
+    SecureAtomicReader secureReader = new SecureAtomicReader(createReader(), accessControlReader, true);
+    Term term = new Term("test", "test");
+    TermsEnum termsEnum = secureReader.fields().terms("test").iterator(null);
+    assertTrue(termsEnum.seekExact(term.bytes(), false));
+    // Only the visibility is known until the statistics are asked for.
+    assertEquals(-1, secureReader.getCachedDocFreq(term));
+    assertEquals(3, termsEnum.docFreq());
+    assertEquals(3, secureReader.getCachedDocFreq(term));
+
+    TermsEnum other = secureReader.fields().terms("test").iterator(null);
+    assertEquals("test", other.next().utf8ToString());
+    assertEquals(3, other.docFreq());
+    assertEquals(3, other.totalTermFreq());
+    secureReader.close();
+  }
+
+  @Test
+  public void testTermVectors() throws IOException {
+    SecureAtomicReader secureReader = getSecureReader();
+    Fields readVectors = secureReader.getTermVectors(0);
+    assertNotNull(readVectors.terms("test"));
+    assertNotNull(readVectors.terms("info"));
+    Fields discoverVectors = secureReader.getTermVectors(1);
+    assertNull(discoverVectors.terms("test"));
+    assertNotNull(discoverVectors.terms("info"));
+    assertEquals(1, discoverVectors.size());
+    assertNull(secureReader.getTermVectors(3));
+
+    Fields[] batch = secureReader.getTermVectors(new int[] { 3, 1, 0 });
+    assertNull(batch[0]);
+    assertEquals(1, batch[1].size());
+    assertNotNull(batch[2].terms("test"));
+    secureReader.close();
+  }
+
   @Test
   public void testQuery() throws IOException, ParseException {
     SecureAtomicReader secureReader = getSecureReader();
@@ -277,6 +380,84 @@ public abstract class SecureAtomicReaderTestBase {
     secureReader.close();
   }
 
+  @Test
+  public void testQueryFilter() throws IOException {
+    AtomicReader baseReader = createReader();
+    AccessControlReader accessControlReader = getAccessControlFactory().getReader(Arrays.asList("r1"),
+        Arrays.asList("d1"), new HashSet<String>());
+    IndexSearcher searcher = new IndexSearcher(baseReader);
+    TopDocs topDocs = searcher.search(new MatchAllDocsQuery(), accessControlReader.getQueryFilter(), 10);
+    assertEquals(3, topDocs.totalHits);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(i, topDocs.scoreDocs[i].doc);
+    }
+    baseReader.close();
+  }
+
+  @Test
+  public void testBulkAccess() throws IOException {
+    AtomicReader baseReader = createReader();
+    AccessControlReader accessControlReader = getAccessControlFactory().getReader(Arrays.asList("r1"),
+        Arrays.asList("d1"), new HashSet<String>()).clone(baseReader);
+    int maxDoc = baseReader.maxDoc();
+    for (ReadType type : ReadType.values()) {
+      FixedBitSet bits = new FixedBitSet(maxDoc);
+      accessControlReader.hasAccess(type, 0, maxDoc, bits);
+      FixedBitSet docIdBits = new FixedBitSet(maxDoc);
+      accessControlReader.hasAccess(type, new int[] { 3, 0, 2, 1 }, 0, 4, docIdBits);
+      FixedBitSet iteratorBits = new FixedBitSet(maxDoc);
+      FixedBitSet all = new FixedBitSet(maxDoc);
+      all.set(0, maxDoc);
+      accessControlReader.hasAccess(type, all.iterator(), iteratorBits);
+      for (int doc = 0; doc < maxDoc; doc++) {
+        assertEquals(accessControlReader.hasAccess(type, doc), bits.get(doc));
+        assertEquals(accessControlReader.hasAccess(type, doc), docIdBits.get(doc));
+        assertEquals(accessControlReader.hasAccess(type, doc), iteratorBits.get(doc));
+      }
+    }
+    baseReader.close();
+  }
+
+  @Test
+  public void testBulkAccessRanges() throws IOException {
+    checkBulkAccessRanges(getAccessControlFactory().getReader(Arrays.asList("r1"), Arrays.asList("d1"),
+        new HashSet<String>()));
+  }
+
+  /**
+   * Checks ranges that start and end inside and on the boundaries of words
+   * against the per doc answers.
+   */
+  protected void checkBulkAccessRanges(AccessControlReader accessControlReader) throws IOException {
+    int maxDoc = 300;
+    IndexWriterConfig conf = new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer());
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, conf);
+    AccessControlWriter accessControlWriter = getAccessControlFactory().getWriter();
+    for (int i = 0; i < maxDoc; i++) {
+      writer.addDocument(accessControlWriter.addDiscoverVisiblity(i % 5 == 0 ? "d1" : "d2",
+          accessControlWriter.addReadVisiblity(i % 3 == 0 ? "r1" : "r2", new Document())));
+    }
+    writer.close();
+    DirectoryReader reader = DirectoryReader.open(dir);
+    AtomicReader baseReader = reader.leaves().get(0).reader();
+    assertEquals(maxDoc, baseReader.maxDoc());
+    AccessControlReader clone = accessControlReader.clone(baseReader);
+    int[][] ranges = { { 0, maxDoc }, { 0, 64 }, { 1, 63 }, { 63, 65 }, { 64, 128 }, { 5, 299 }, { 130, 130 },
+        { 256, maxDoc } };
+    for (ReadType type : ReadType.values()) {
+      for (int[] range : ranges) {
+        FixedBitSet bits = new FixedBitSet(maxDoc);
+        clone.hasAccess(type, range[0], range[1], bits);
+        for (int doc = 0; doc < maxDoc; doc++) {
+          boolean expected = doc >= range[0] && doc < range[1] && clone.hasAccess(type, doc);
+          assertEquals(type + " " + Arrays.toString(range) + " " + doc, expected, bits.get(doc));
+        }
+      }
+    }
+    reader.close();
+  }
+
   private SecureAtomicReader getSecureReader() throws IOException {
     AtomicReader baseReader = createReader();
     Set<String> dicoverableFields = new HashSet<String>();
@@ -314,8 +495,8 @@ public abstract class SecureAtomicReaderTestBase {
 
   private Iterable<IndexableField> getDoc(int i) {
     Document document = new Document();
-    document.add(new StringField("test", "test", Store.YES));
-    document.add(new StringField("info", "info", Store.YES));
+    document.add(new Field("test", "test", TERM_VECTOR_TYPE));
+    document.add(new Field("info", "info", TERM_VECTOR_TYPE));
     if (i == 3) {
       document.add(new StringField("shouldnotsee", "shouldnotsee", Store.YES));
     }
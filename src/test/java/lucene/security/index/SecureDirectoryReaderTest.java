@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lucene.security.index.FilterAccessControlFactory.FilterAccessControlReader;
+import lucene.security.search.OffHeapDocumentVisibilityFilterCacheStrategy;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+public class SecureDirectoryReaderTest {
+
+  private AccessControlFactory _accessControlFactory = new FilterAccessControlFactory();
+
+  @Test
+  public void testReopen() throws IOException {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+    writer.addDocument(getDoc("0", "r1"));
+    writer.addDocument(getDoc("1", "r2"));
+    writer.commit();
+    writer.addDocument(getDoc("2", "r1"));
+    writer.addDocument(getDoc("3", "r1"));
+    writer.commit();
+
+    AccessControlReader accessControlReader = _accessControlFactory.getReader(Arrays.asList("r1"),
+        Arrays.asList("d1"), new HashSet<String>());
+    SecureDirectoryReader reader = new SecureDirectoryReader(DirectoryReader.open(dir), accessControlReader);
+    assertEquals(2, reader.leaves().size());
+
+    writer.deleteDocuments(new Term("id", "2"));
+    writer.addDocument(getDoc("4", "r1"));
+    writer.commit();
+
+    DirectoryReader reopened = DirectoryReader.openIfChanged(reader);
+    assertTrue(reopened instanceof SecureDirectoryReader);
+    assertEquals(3, reopened.leaves().size());
+    // The first segment did not change.
+    assertSame(reader.leaves().get(0).reader(), reopened.leaves().get(0).reader());
+    // The second segment only has new deletes.
+    AtomicReader second = reopened.leaves().get(1).reader();
+    assertNotSame(reader.leaves().get(1).reader(), second);
+    assertTrue(second instanceof SecureAtomicReader);
+    Bits liveDocs = second.getLiveDocs();
+    assertFalse(liveDocs.get(0));
+    assertTrue(liveDocs.get(1));
+    assertTrue(reopened.leaves().get(2).reader().getLiveDocs().get(0));
+
+    reader.close();
+    reopened.close();
+    writer.close();
+  }
+
+  @Test
+  public void testSearchReopenedAfterClosingOld() throws IOException {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+    writer.addDocument(getDoc("0", "r1"));
+    writer.addDocument(getDoc("1", "r2"));
+    writer.commit();
+    writer.addDocument(getDoc("2", "r1"));
+    writer.addDocument(getDoc("3", "r1"));
+    writer.commit();
+
+    // Off heap bitsets fail loudly if they are freed while still in use.
+    OffHeapDocumentVisibilityFilterCacheStrategy strategy = new OffHeapDocumentVisibilityFilterCacheStrategy(
+        1024 * 1024);
+    AccessControlReader accessControlReader = new FilterAccessControlReader(Arrays.asList("r1"),
+        Arrays.asList("d1"), new HashSet<String>(), strategy);
+    SecureDirectoryReader reader = new SecureDirectoryReader(DirectoryReader.open(dir), accessControlReader);
+    IndexSearcher searcher = new IndexSearcher(reader);
+    assertEquals(3, searcher.search(new MatchAllDocsQuery(), 10).totalHits);
+
+    writer.deleteDocuments(new Term("id", "2"));
+    writer.commit();
+    DirectoryReader reopened = DirectoryReader.openIfChanged(reader);
+    reader.close();
+
+    searcher = new IndexSearcher(reopened);
+    TopDocs topDocs = searcher.search(new MatchAllDocsQuery(), 10);
+    assertEquals(2, topDocs.totalHits);
+    assertEquals("0", searcher.doc(topDocs.scoreDocs[0].doc).get("id"));
+    assertEquals("3", searcher.doc(topDocs.scoreDocs[1].doc).get("id"));
+    assertTrue(strategy.getSizeInBytes() > 0);
+
+    reopened.close();
+    writer.close();
+    assertEquals(0, strategy.getSizeInBytes());
+  }
+
+  @Test
+  public void testCreateInParallel() throws IOException {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+    for (int i = 0; i < 4; i++) {
+      writer.addDocument(getDoc(Integer.toString(i * 2), "r1"));
+      writer.addDocument(getDoc(Integer.toString(i * 2 + 1), "r2"));
+      writer.commit();
+    }
+    writer.close();
+
+    DirectoryReader reader = DirectoryReader.open(dir);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      SecureDirectoryReader secureReader = SecureDirectoryReader.create(_accessControlFactory, reader,
+          Arrays.asList("r1"), Arrays.asList("d1"), new HashSet<String>(), executor);
+      assertEquals(4, secureReader.leaves().size());
+      for (AtomicReaderContext context : secureReader.leaves()) {
+        assertTrue(context.reader() instanceof SecureAtomicReader);
+        Bits liveDocs = context.reader().getLiveDocs();
+        assertTrue(liveDocs.get(0));
+        assertFalse(liveDocs.get(1));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    reader.close();
+  }
+
+  private Iterable<IndexableField> getDoc(String id, String read) {
+    Document document = new Document();
+    document.add(new StringField("id", id, Store.YES));
+    return _accessControlFactory.getWriter().addReadVisiblity(read, document);
+  }
+
+}
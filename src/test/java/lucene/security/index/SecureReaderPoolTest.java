@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import lucene.security.search.SecureIndexSearcher;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+public class SecureReaderPoolTest {
+
+  private AccessControlFactory _accessControlFactory = new FilterAccessControlFactory();
+
+  @Test
+  public void testPool() throws IOException {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+    writer.addDocument(getDoc("0", "r1"));
+    writer.addDocument(getDoc("1", "r2"));
+    writer.commit();
+
+    SecureReaderPool pool = new SecureReaderPool(_accessControlFactory);
+    DirectoryReader reader = DirectoryReader.open(dir);
+    IndexReader secureReader = pool.getSecureIndexReader(reader, Arrays.asList("r1", "r3"), Arrays.asList("d1"),
+        new HashSet<String>());
+    assertSame(secureReader,
+        pool.getSecureIndexReader(reader, Arrays.asList("r3", "r1"), Arrays.asList("d1"), new HashSet<String>()));
+    assertNotSame(secureReader,
+        pool.getSecureIndexReader(reader, Arrays.asList("r1"), Arrays.asList("d1"), new HashSet<String>()));
+
+    SecureIndexSearcher searcher = new SecureIndexSearcher(reader, null, pool, Arrays.asList("r1", "r3"),
+        Arrays.asList("d1"), new HashSet<String>());
+    assertSame(secureReader, searcher.getIndexReader());
+    assertEquals(1, searcher.search(new MatchAllDocsQuery(), 10).totalHits);
+
+    writer.addDocument(getDoc("2", "r1"));
+    writer.commit();
+    DirectoryReader reopened = DirectoryReader.openIfChanged(reader);
+    IndexReader secureReopened = pool.getSecureIndexReader(reopened, Arrays.asList("r1", "r3"), Arrays.asList("d1"),
+        new HashSet<String>());
+    assertNotSame(secureReader, secureReopened);
+    // The unchanged segment is shared.
+    assertSame(secureReader.leaves().get(0).reader(), secureReopened.leaves().get(0).reader());
+    assertEquals(2, new SecureIndexSearcher(reopened, null, pool, Arrays.asList("r1", "r3"), Arrays.asList("d1"),
+        new HashSet<String>()).search(new MatchAllDocsQuery(), 10).totalHits);
+
+    reader.close();
+    reopened.close();
+    writer.close();
+  }
+
+  @Test
+  public void testReopenWithDeletes() throws IOException {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+    writer.addDocument(getDoc("0", "r1"));
+    writer.addDocument(getDoc("1", "r1"));
+    writer.commit();
+
+    SecureReaderPool pool = new SecureReaderPool(_accessControlFactory);
+    DirectoryReader reader = DirectoryReader.open(dir);
+    IndexReader secureReader = pool.getSecureIndexReader(reader, Arrays.asList("r1"), Arrays.asList("d1"),
+        new HashSet<String>());
+    SecureAtomicReader segment = (SecureAtomicReader) secureReader.leaves().get(0).reader();
+
+    writer.deleteDocuments(new Term("id", "0"));
+    writer.commit();
+    DirectoryReader reopened = DirectoryReader.openIfChanged(reader);
+    reader.close();
+    IndexReader secureReopened = pool.getSecureIndexReader(reopened, Arrays.asList("r1"), Arrays.asList("d1"),
+        new HashSet<String>());
+    SecureAtomicReader reopenedSegment = (SecureAtomicReader) secureReopened.leaves().get(0).reader();
+    assertNotSame(segment, reopenedSegment);
+    // Only the deletes changed, the access control clone is reused.
+    assertSame(segment.getAccessControlReader(), reopenedSegment.getAccessControlReader());
+    assertFalse(reopenedSegment.getLiveDocs().get(0));
+    assertTrue(reopenedSegment.getLiveDocs().get(1));
+
+    reopened.close();
+    assertEquals(0, pool.size());
+    writer.close();
+  }
+
+  @Test
+  public void testEvictionUnderByteBudget() throws IOException {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+    for (int i = 0; i < 1000; i++) {
+      writer.addDocument(getDoc(Integer.toString(i), "r1"));
+    }
+    writer.forceMerge(1);
+    writer.close();
+
+    // One segment of 1000 docs is 128 bytes of access bits, each authorization
+    // set pools the segment and the directory reader holding it.
+    long maxBytes = 600;
+    SecureReaderPool pool = new SecureReaderPool(_accessControlFactory,
+        SecureReaderPool.DEFAULT_MAX_AUTHORIZATION_SETS, maxBytes);
+    DirectoryReader reader = DirectoryReader.open(dir);
+    IndexReader secureReader1 = pool.getSecureIndexReader(reader, Arrays.asList("r1"), Arrays.asList("d1"),
+        new HashSet<String>());
+    assertEquals(256, pool.getSizeInBytes());
+    IndexReader secureReader2 = pool.getSecureIndexReader(reader, Arrays.asList("r2"), Arrays.asList("d1"),
+        new HashSet<String>());
+    assertEquals(512, pool.getSizeInBytes());
+    pool.getSecureIndexReader(reader, Arrays.asList("r3"), Arrays.asList("d1"), new HashSet<String>());
+    assertTrue(pool.getSizeInBytes() <= maxBytes);
+
+    // The least recently used set was evicted and is rebuilt.
+    assertSame(secureReader2,
+        pool.getSecureIndexReader(reader, Arrays.asList("r2"), Arrays.asList("d1"), new HashSet<String>()));
+    IndexReader rebuilt = pool.getSecureIndexReader(reader, Arrays.asList("r1"), Arrays.asList("d1"),
+        new HashSet<String>());
+    assertNotSame(secureReader1, rebuilt);
+    assertEquals(1000, new SecureIndexSearcher(reader, null, pool, Arrays.asList("r1"), Arrays.asList("d1"),
+        new HashSet<String>()).search(new MatchAllDocsQuery(), 10).totalHits);
+    assertTrue(pool.getSizeInBytes() <= maxBytes);
+
+    reader.close();
+    assertEquals(0, pool.size());
+    assertEquals(0, pool.getSizeInBytes());
+  }
+
+  @Test
+  public void testClosedReader() throws IOException {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+    writer.addDocument(getDoc("0", "r1"));
+    writer.close();
+
+    SecureReaderPool pool = new SecureReaderPool(_accessControlFactory);
+    DirectoryReader reader = DirectoryReader.open(dir);
+    reader.close();
+    try {
+      pool.getSecureIndexReader(reader, Arrays.asList("r1"), Arrays.asList("d1"), new HashSet<String>());
+      fail();
+    } catch (AlreadyClosedException e) {
+      // The reader was closed before it was pooled.
+    }
+    assertEquals(0, pool.size());
+  }
+
+  private Iterable<IndexableField> getDoc(String id, String read) {
+    Document document = new Document();
+    document.add(new StringField("id", id, Store.YES));
+    return _accessControlFactory.getWriter().addReadVisiblity(read, document);
+  }
+
+}
@@ -0,0 +1,467 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import lucene.security.AuthorizationDictionary;
+import lucene.security.DocumentAuthorizations;
+import lucene.security.accumulo.ArrayByteSequence;
+import lucene.security.index.FilterAccessControlFactory;
+import lucene.security.index.FilterAccessControlFactory.FilterAccessControlWriter;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+public class DocumentVisibilityFilterTest {
+
+  private static final int MAX_DOC = 10000;
+
+  @Test
+  public void testLogicalOrSmall() throws IOException {
+    runLogicalOr(3);
+  }
+
+  @Test
+  public void testLogicalOrLarge() throws IOException {
+    runLogicalOr(200);
+  }
+
+  @Test
+  public void testUnion() throws IOException {
+    OpenBitSet bitSet1 = new OpenBitSet(MAX_DOC);
+    bitSet1.set(1);
+    bitSet1.set(MAX_DOC - 1);
+    OpenBitSet bitSet2 = new OpenBitSet(MAX_DOC);
+    bitSet2.set(5);
+    List<DocIdSet> list = new ArrayList<DocIdSet>();
+    list.add(bitSet1);
+    list.add(bitSet2);
+    DocIdSet docIdSet = DocumentVisibilityFilter.getUnion(list, MAX_DOC);
+    assertTrue(docIdSet instanceof OpenBitSet);
+    assertEquals(3, ((OpenBitSet) docIdSet).cardinality());
+    Bits bits = docIdSet.bits();
+    assertTrue(bits.get(1));
+    assertTrue(bits.get(5));
+    assertTrue(bits.get(MAX_DOC - 1));
+    assertFalse(bits.get(2));
+  }
+
+  @Test
+  public void testVisibleCacheIgnoresAuthorizationOrder() throws IOException {
+    DirectoryReader reader = createReader();
+    AtomicReaderContext context = reader.leaves().get(0);
+    String field = FilterAccessControlFactory.READ_FIELD;
+    DocumentAuthorizations authorizations1 = new DocumentAuthorizations("a", "b");
+    DocumentAuthorizations authorizations2 = new DocumentAuthorizations("b", "a");
+
+    // Separate strategies so the second filter does not stop at the
+    // authorization set tier.
+    DocIdSet docIdSet1 = new DocumentVisibilityFilter(field, authorizations1,
+        new BitSetDocumentVisibilityFilterCacheStrategy()).getDocIdSet(context, null);
+    long[] mask = authorizations2.getAuthorizationMask();
+    assertTrue(DocumentVisibilityFilter.isVisibleCached(mask, new BytesRef("a&b")));
+    assertTrue(DocumentVisibilityFilter.isVisibleCached(mask, new BytesRef("c")));
+    int size = DocumentVisibilityFilter.getVisibleCacheSize();
+
+    DocIdSet docIdSet2 = new DocumentVisibilityFilter(field, authorizations2,
+        new BitSetDocumentVisibilityFilterCacheStrategy()).getDocIdSet(context, null);
+    assertEquals(size, DocumentVisibilityFilter.getVisibleCacheSize());
+    assertTrue(docIdSet1.bits().get(0));
+    assertFalse(docIdSet1.bits().get(1));
+    assertTrue(docIdSet2.bits().get(0));
+    assertFalse(docIdSet2.bits().get(1));
+    reader.close();
+  }
+
+  @Test
+  public void testVisibleCacheMasksDoNotCollide() throws IOException {
+    String label = "collide";
+    int id = AuthorizationDictionary.getInstance().getId(new ArrayByteSequence(label));
+    int word = id >>> 6;
+    // The mask holding the label and one without it that has the same hash.
+    long[] with = new long[word + 2];
+    AuthorizationDictionary.set(with, id);
+    long[] without = new long[word + 2];
+    long hash = with[word] ^ (with[word] >>> 32);
+    without[word + 1] = (31 * (int) hash) & 0xffffffffL;
+    assertEquals(Arrays.hashCode(with), Arrays.hashCode(without));
+
+    BytesRef term = new BytesRef(label);
+    assertTrue(DocumentVisibilityFilter.isVisible(with, term));
+    assertFalse(DocumentVisibilityFilter.isVisible(without, term));
+    assertTrue(DocumentVisibilityFilter.isVisible(with, term));
+    assertFalse(DocumentVisibilityFilter.isVisible(new DocumentAuthorizations("other").getAuthorizationMask(), term));
+  }
+
+  @Test
+  public void testVisibilityCachesAreBounded() throws IOException {
+    long[] mask = new DocumentAuthorizations("bound0").getAuthorizationMask();
+    for (int i = 0; i < DocumentVisibilityFilter.MAX_CACHED_RESULTS + 1000; i++) {
+      assertEquals(i == 0, DocumentVisibilityFilter.isVisible(mask, new BytesRef("bound" + i)));
+    }
+    assertTrue(DocumentVisibilityFilter.getVisibleCacheSize() <= DocumentVisibilityFilter.MAX_CACHED_RESULTS);
+    assertTrue(DocumentVisibilityFilter.getVisibilityCacheSize() <= DocumentVisibilityFilter.MAX_CACHED_VISIBILITIES);
+  }
+
+  @Test
+  public void testAuthorizationsCacheIsShared() throws IOException {
+    DirectoryReader reader = createReader();
+    AtomicReaderContext context = reader.leaves().get(0);
+
+    DocumentVisibilityFilterCacheStrategy strategy = new BitSetDocumentVisibilityFilterCacheStrategy();
+    String field = FilterAccessControlFactory.READ_FIELD;
+    DocumentVisibilityFilter filter1 = new DocumentVisibilityFilter(field, new DocumentAuthorizations("a", "b"),
+        strategy);
+    DocumentVisibilityFilter filter2 = new DocumentVisibilityFilter(field, new DocumentAuthorizations("b", "a"),
+        strategy);
+    DocIdSet docIdSet = filter1.getDocIdSet(context, null);
+    assertSame(docIdSet, filter2.getDocIdSet(context, null));
+    Bits bits = docIdSet.bits();
+    assertTrue(bits.get(0));
+    assertFalse(bits.get(1));
+    reader.close();
+  }
+
+  @Test
+  public void testBoundedCache() throws IOException {
+    DirectoryReader reader = createReader();
+    AtomicReaderContext context = reader.leaves().get(0);
+
+    // Room for a single bitset of a 2 document segment.
+    BitSetDocumentVisibilityFilterCacheStrategy strategy = new BitSetDocumentVisibilityFilterCacheStrategy(8);
+    String field = FilterAccessControlFactory.READ_FIELD;
+    new DocumentVisibilityFilter(field, new DocumentAuthorizations("a", "b", "c"), strategy).getDocIdSet(context,
+        null);
+    assertTrue(strategy.getEvictionCount() > 0);
+    assertTrue(strategy.getSizeInBytes() <= 8);
+    assertEquals(0, strategy.getHitCount());
+
+    DocumentVisibilityFilter filter = new DocumentVisibilityFilter(field, new DocumentAuthorizations("c"), strategy);
+    DocIdSet docIdSet = filter.getDocIdSet(context, null);
+    assertSame(docIdSet, filter.getDocIdSet(context, null));
+    assertTrue(strategy.getHitCount() > 0);
+    reader.close();
+  }
+
+  @Test
+  public void testEntriesSurviveClosingReaderOnSharedCore() throws IOException {
+    IndexWriter writer = createWriter(new RAMDirectory());
+    DirectoryReader oldReader = DirectoryReader.open(writer, true);
+    BitSetDocumentVisibilityFilterCacheStrategy strategy = new BitSetDocumentVisibilityFilterCacheStrategy();
+    String field = FilterAccessControlFactory.READ_FIELD;
+    DocumentVisibilityFilter filter = new DocumentVisibilityFilter(field, new DocumentAuthorizations("c"), strategy);
+    DocIdSet docIdSet = filter.getDocIdSet(oldReader.leaves().get(0), null);
+
+    DirectoryReader newReader = reopenWithDeletes(writer, oldReader);
+    oldReader.close();
+    AtomicReaderContext context = newReader.leaves().get(0);
+    assertSame(docIdSet, strategy.getDocIdSet(field, new DocumentAuthorizations("c"), context.reader()));
+    assertTrue(strategy.getSizeInBytes() > 0);
+
+    newReader.close();
+    writer.close();
+    assertEquals(0, strategy.getSizeInBytes());
+  }
+
+  @Test
+  public void testCoreCloseOnlyPurgesItsEntries() throws IOException {
+    DirectoryReader reader1 = createReader();
+    DirectoryReader reader2 = createReader();
+    BitSetDocumentVisibilityFilterCacheStrategy strategy = new BitSetDocumentVisibilityFilterCacheStrategy();
+    DocumentVisibilityFilter filter = new DocumentVisibilityFilter(FilterAccessControlFactory.READ_FIELD,
+        new DocumentAuthorizations("c"), strategy);
+    filter.getDocIdSet(reader1.leaves().get(0), null);
+    long size = strategy.getSizeInBytes();
+    DocIdSet docIdSet = filter.getDocIdSet(reader2.leaves().get(0), null);
+    assertEquals(size * 2, strategy.getSizeInBytes());
+
+    AtomicReader closed = reader1.leaves().get(0).reader();
+    reader1.close();
+    assertEquals(size, strategy.getSizeInBytes());
+    assertSame(docIdSet, filter.getDocIdSet(reader2.leaves().get(0), null));
+
+    // Entries added after the core closed are not kept.
+    strategy.cacheDocIdSet(FilterAccessControlFactory.READ_FIELD, new DocumentAuthorizations("a"), closed,
+        new OpenBitSet(2));
+    assertEquals(size, strategy.getSizeInBytes());
+    reader2.close();
+    assertEquals(0, strategy.getSizeInBytes());
+  }
+
+  @Test
+  public void testOffHeapCache() throws IOException {
+    File cacheDir = new File("./target/tmp/offheap");
+    cacheDir.mkdirs();
+    runOffHeap(new OffHeapDocumentVisibilityFilterCacheStrategy(1024 * 1024));
+    runOffHeap(new OffHeapDocumentVisibilityFilterCacheStrategy(1024 * 1024, cacheDir));
+  }
+
+  private void runOffHeap(OffHeapDocumentVisibilityFilterCacheStrategy strategy) throws IOException {
+    DirectoryReader reader = createReader();
+    AtomicReaderContext context = reader.leaves().get(0);
+    String field = FilterAccessControlFactory.READ_FIELD;
+    DocIdSet docIdSet = new DocumentVisibilityFilter(field, new DocumentAuthorizations("a", "b", "c"), strategy)
+        .getDocIdSet(context, null);
+    assertTrue(docIdSet instanceof LongBufferBitSet);
+    Bits bits = docIdSet.bits();
+    assertTrue(bits.get(0));
+    assertTrue(bits.get(1));
+    DocIdSetIterator iterator = docIdSet.iterator();
+    assertEquals(0, iterator.nextDoc());
+    assertEquals(1, iterator.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, iterator.nextDoc());
+    assertTrue(strategy.getSizeInBytes() > 0);
+    reader.close();
+    assertEquals(0, strategy.getSizeInBytes());
+  }
+
+  @Test
+  public void testOffHeapCacheAfterReopenWithDeletes() throws IOException {
+    File cacheDir = new File("./target/tmp/offheap");
+    cacheDir.mkdirs();
+    runReopenWithDeletes(new OffHeapDocumentVisibilityFilterCacheStrategy(1024 * 1024));
+    runReopenWithDeletes(new OffHeapDocumentVisibilityFilterCacheStrategy(1024 * 1024, cacheDir));
+  }
+
+  private void runReopenWithDeletes(BitSetDocumentVisibilityFilterCacheStrategy strategy) throws IOException {
+    IndexWriter writer = createWriter(new RAMDirectory());
+    DirectoryReader oldReader = DirectoryReader.open(writer, true);
+    String field = FilterAccessControlFactory.READ_FIELD;
+    DocumentVisibilityFilter filter = new DocumentVisibilityFilter(field, new DocumentAuthorizations("a", "b", "c"),
+        strategy);
+    DocIdSet docIdSet = filter.getDocIdSet(oldReader.leaves().get(0), null);
+
+    DirectoryReader newReader = reopenWithDeletes(writer, oldReader);
+    oldReader.close();
+    assertSame(docIdSet, filter.getDocIdSet(newReader.leaves().get(0), null));
+    Bits bits = docIdSet.bits();
+    assertTrue(bits.get(0));
+    assertTrue(bits.get(1));
+    DocIdSet termDocIdSet = strategy.getDocIdSet(field, new BytesRef("c"), newReader.leaves().get(0).reader());
+    assertFalse(termDocIdSet.bits().get(0));
+    assertTrue(termDocIdSet.bits().get(1));
+    IndexSearcher searcher = new IndexSearcher(newReader);
+    assertEquals(1, searcher.search(new TermQuery(new Term(field, "c")), filter, 10).totalHits);
+
+    newReader.close();
+    writer.close();
+    assertEquals(0, strategy.getSizeInBytes());
+    // Reading a bitset after its core closed fails instead of reading freed
+    // memory.
+    try {
+      bits.get(0);
+      fail();
+    } catch (AlreadyClosedException e) {
+      // expected
+    }
+    try {
+      termDocIdSet.iterator().nextDoc();
+      fail();
+    } catch (AlreadyClosedException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testPersistentCache() throws IOException {
+    File cacheDir = new File("./target/tmp/persistent");
+    Directory dir = new RAMDirectory();
+    DirectoryReader reader = createReader(dir);
+    AtomicReaderContext context = reader.leaves().get(0);
+    String field = FilterAccessControlFactory.READ_FIELD;
+    BytesRef term = new BytesRef("c");
+
+    PersistentDocumentVisibilityFilterCacheStrategy strategy1 = new PersistentDocumentVisibilityFilterCacheStrategy(
+        1024 * 1024, cacheDir);
+    strategy1.removeUnusedSegments(reader);
+    assertNull(strategy1.getDocIdSet(field, term, context.reader()));
+    new DocumentVisibilityFilter(field, new DocumentAuthorizations("c"), strategy1).getDocIdSet(context, null);
+    reader.close();
+
+    // Simulates a restart, the bitset is mapped back from the sidecar file.
+    reader = DirectoryReader.open(dir);
+    context = reader.leaves().get(0);
+    PersistentDocumentVisibilityFilterCacheStrategy strategy2 = new PersistentDocumentVisibilityFilterCacheStrategy(
+        1024 * 1024, cacheDir);
+    DocIdSet docIdSet = strategy2.getDocIdSet(field, term, context.reader());
+    assertTrue(docIdSet instanceof LongBufferBitSet);
+    Bits bits = docIdSet.bits();
+    assertFalse(bits.get(0));
+    assertTrue(bits.get(1));
+    reader.close();
+  }
+
+  @Test
+  public void testPersistentCacheAfterReopenWithDeletes() throws IOException {
+    runReopenWithDeletes(new PersistentDocumentVisibilityFilterCacheStrategy(1024 * 1024, new File(
+        "./target/tmp/persistent-reopen")));
+  }
+
+  @Test
+  public void testWarmer() throws IOException {
+    DirectoryReader reader = createReader();
+    AtomicReader atomicReader = reader.leaves().get(0).reader();
+    String field = FilterAccessControlFactory.READ_FIELD;
+    BitSetDocumentVisibilityFilterCacheStrategy strategy = new BitSetDocumentVisibilityFilterCacheStrategy();
+    DocumentVisibilityFilterCacheWarmer warmer = new DocumentVisibilityFilterCacheWarmer(strategy,
+        new FilterAccessControlFactory(), 2);
+    warmer.warm(reader);
+    warmer.close();
+    assertNotNull(strategy.getDocIdSet(field, new BytesRef("a&b"), atomicReader));
+    assertNotNull(strategy.getDocIdSet(field, new BytesRef("c"), atomicReader));
+    reader.close();
+  }
+
+  /**
+   * Deletes a document and reopens the reader, the segment keeps its core.
+   */
+  @Test
+  public void testMergedSegmentWarmer() throws IOException {
+    BitSetDocumentVisibilityFilterCacheStrategy strategy = new BitSetDocumentVisibilityFilterCacheStrategy();
+    DocumentVisibilityFilterCacheWarmer warmer = new DocumentVisibilityFilterCacheWarmer(strategy,
+        new FilterAccessControlFactory(), 2);
+    IndexWriterConfig conf = new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer());
+    conf.setMergedSegmentWarmer(warmer);
+    IndexWriter writer = new IndexWriter(new RAMDirectory(), conf);
+    FilterAccessControlWriter accessControlWriter = new FilterAccessControlWriter();
+    writer.addDocument(accessControlWriter.addReadVisiblity("a&b", new Document()));
+    DirectoryReader reader = DirectoryReader.open(writer, true);
+    writer.addDocument(accessControlWriter.addReadVisiblity("c", new Document()));
+    writer.forceMerge(1);
+    warmer.close();
+    assertEquals(0, strategy.getHitCount());
+    assertEquals(0, strategy.getMissCount());
+    assertTrue(strategy.getSizeInBytes() > 0);
+
+    DirectoryReader newReader = DirectoryReader.openIfChanged(reader, writer, true);
+    reader.close();
+    AtomicReader atomicReader = newReader.leaves().get(0).reader();
+    String field = FilterAccessControlFactory.READ_FIELD;
+    assertTrue(strategy.isCached(field, new BytesRef("a&b"), atomicReader));
+    assertTrue(strategy.isCached(field, new BytesRef("c"), atomicReader));
+    assertEquals(0, strategy.getHitCount());
+
+    IndexSearcher searcher = new IndexSearcher(newReader);
+    DocumentVisibilityFilter filter = new DocumentVisibilityFilter(field, new DocumentAuthorizations("c"), strategy);
+    assertEquals(1, searcher.search(new TermQuery(new Term(field, "c")), filter, 10).totalHits);
+    // Only the authorization set tier misses, the term comes from the warmer.
+    assertEquals(1, strategy.getHitCount());
+    assertEquals(1, strategy.getMissCount());
+    newReader.close();
+    writer.close();
+  }
+
+  private DirectoryReader reopenWithDeletes(IndexWriter writer, DirectoryReader reader) throws IOException {
+    writer.deleteDocuments(new Term(FilterAccessControlFactory.READ_FIELD, "a&b"));
+    DirectoryReader newReader = DirectoryReader.openIfChanged(reader, writer, true);
+    assertNotNull(newReader);
+    assertSame(reader.leaves().get(0).reader().getCoreCacheKey(), newReader.leaves().get(0).reader()
+        .getCoreCacheKey());
+    return newReader;
+  }
+
+  private DirectoryReader createReader() throws IOException {
+    return createReader(new RAMDirectory());
+  }
+
+  private DirectoryReader createReader(Directory dir) throws IOException {
+    createWriter(dir).close();
+    return DirectoryReader.open(dir);
+  }
+
+  private IndexWriter createWriter(Directory dir) throws IOException {
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+    FilterAccessControlWriter accessControlWriter = new FilterAccessControlWriter();
+    writer.addDocument(accessControlWriter.addReadVisiblity("a&b", new Document()));
+    writer.addDocument(accessControlWriter.addReadVisiblity("c", new Document()));
+    return writer;
+  }
+
+  private void runLogicalOr(int count) throws IOException {
+    Random random = new Random(1);
+    List<DocIdSet> list = new ArrayList<DocIdSet>();
+    OpenBitSet expected = new OpenBitSet(MAX_DOC);
+    for (int i = 0; i < count; i++) {
+      OpenBitSet bitSet = new OpenBitSet(MAX_DOC);
+      for (int j = 0; j < 50; j++) {
+        int doc = random.nextInt(MAX_DOC);
+        bitSet.set(doc);
+        expected.set(doc);
+      }
+      list.add(bitSet);
+    }
+    DocIdSet docIdSet = DocumentVisibilityFilter.getLogicalOr(list);
+
+    Bits bits = docIdSet.bits();
+    for (int i = 0; i < MAX_DOC; i++) {
+      assertEquals(expected.get(i), bits.get(i));
+    }
+
+    DocIdSetIterator iterator = docIdSet.iterator();
+    int doc;
+    int expectedDoc = -1;
+    while ((doc = iterator.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+      expectedDoc = expected.nextSetBit(expectedDoc + 1);
+      assertEquals(expectedDoc, doc);
+    }
+    assertEquals(-1, expected.nextSetBit(expectedDoc + 1));
+
+    iterator = docIdSet.iterator();
+    for (int target = 0; target < MAX_DOC; target += 1 + random.nextInt(500)) {
+      if (target <= iterator.docID()) {
+        continue;
+      }
+      int next = expected.nextSetBit(target);
+      assertEquals(next < 0 ? DocIdSetIterator.NO_MORE_DOCS : next, iterator.advance(target));
+      if (next < 0) {
+        break;
+      }
+    }
+  }
+}
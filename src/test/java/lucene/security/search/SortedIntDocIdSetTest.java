@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucene.security.search;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.OpenBitSetIterator;
+import org.junit.Test;
+
+public class SortedIntDocIdSetTest {
+
+  private static final int MAX_DOC = 100000;
+
+  @Test
+  public void testCompressedBuilder() throws IOException {
+    Random random = new Random(1);
+    CompressedDocumentVisibilityFilterCacheStrategy strategy = new CompressedDocumentVisibilityFilterCacheStrategy();
+    for (int count : new int[] { 0, 10, 1000, 10000 }) {
+      OpenBitSet expected = new OpenBitSet(MAX_DOC);
+      for (int i = 0; i < count; i++) {
+        expected.set(random.nextInt(MAX_DOC));
+      }
+      DocumentVisibilityFilterCacheStrategy.Builder builder = strategy.newBuilder(MAX_DOC);
+      builder.or(new OpenBitSetIterator(expected));
+      DocIdSet docIdSet = builder.getDocIdSet();
+      if (expected.cardinality() < MAX_DOC / 64) {
+        assertEquals(SortedIntDocIdSet.class, docIdSet.getClass());
+      } else {
+        assertEquals(OpenBitSet.class, docIdSet.getClass());
+      }
+      assertSame(expected, docIdSet, random);
+    }
+  }
+
+  private void assertSame(OpenBitSet expected, DocIdSet docIdSet, Random random) throws IOException {
+    Bits bits = docIdSet.bits();
+    for (int i = 0; i < MAX_DOC; i++) {
+      assertEquals(expected.get(i), bits.get(i));
+    }
+
+    DocIdSetIterator iterator = docIdSet.iterator();
+    int doc = -1;
+    while ((doc = expected.nextSetBit(doc + 1)) >= 0) {
+      assertEquals(doc, iterator.nextDoc());
+    }
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, iterator.nextDoc());
+
+    iterator = docIdSet.iterator();
+    int target = 0;
+    while (true) {
+      target += 1 + random.nextInt(2000);
+      if (target >= MAX_DOC) {
+        break;
+      }
+      int next = expected.nextSetBit(target);
+      int result = iterator.advance(target);
+      assertEquals(next < 0 ? DocIdSetIterator.NO_MORE_DOCS : next, result);
+      if (result == DocIdSetIterator.NO_MORE_DOCS) {
+        break;
+      }
+      target = result;
+    }
+  }
+}